@@ -0,0 +1,457 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Changes to keys and groups staged by <code>Settings.batch</code>,
+ * which are applied all at once, or not at all.
+ * <blockquote>
+ * <pre>
+ *     set.batch(tx -&gt; {
+ *         tx.addGroup("/Servers/S3/");
+ *         tx.addKey("/Servers/S3/", "host", "c");
+ *         tx.changeValue("/Constants/", "int", 11);
+ *         tx.deleteGroup("/Servers/S1/");
+ *     });
+ * </pre>
+ * </blockquote>
+ * Groups are given by their absolute path. Every change is checked
+ * when it is staged, against the settings with the changes staged
+ * before it, and an exception is thrown if it cannot be applied, or
+ * if the key, the group name or the value could not be read back
+ * from the file once saved. The changes mean the same as the
+ * methods of <code>Group</code> with the same names.
+ */
+public final class Batch {
+
+    /* The data buffer changed */
+    private final Buffer buffer;
+
+    /* The groups added, by path in the order they were added, with their keys */
+    private final Map<String,Map<String,Value>> added = new LinkedHashMap<>();
+
+    /* The groups of the buffer deleted, by path */
+    private final Set<String> deleted = new LinkedHashSet<>();
+
+    /* The keys changed in the groups of the buffer, by path, null values for deleted keys */
+    private final Map<String,Map<String,Value>> changed = new LinkedHashMap<>();
+
+    /* The keys deleted and added again in the groups of the buffer, by path */
+    private final Map<String,Set<String>> moved = new HashMap<>();
+
+    /* True once applied, the batch must not be used any more */
+    private boolean applied;
+
+    /**
+     * Creates an empty batch.
+     * @param buffer the data buffer changed
+     */
+    Batch(final Buffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Adds an empty group.
+     * Nothing happens if the group exists already.
+     * @param groupPath the absolute path of the group
+     * @throws GcfException if the parent group does not exist,
+     *         or the name is not a valid group name
+     */
+    public void addGroup(final String groupPath) throws GcfException {
+        final String path = absolute(groupPath);
+        final String parent = parentOf(path);
+        final String name = path.substring(parent.length(), path.length() - 1);
+        checkName(name, false);
+        if (!parent.equals("/") && !exists(parent)) {
+            throw new GcfException("cannot add group \""+path+"\", group \""+parent+"\" does not exist");
+        }
+        if (!exists(path)) {
+            this.added.put(path, new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * Deletes a group with all its keys and sub groups.
+     * @param groupPath the absolute path of the group
+     * @throws GcfException if the group does not exist
+     */
+    public void deleteGroup(final String groupPath) throws GcfException {
+        final String path = absolute(groupPath);
+        checkExists(path);
+
+        final boolean original = !gone(path) && this.buffer.containsGroup(path);
+        this.added.keySet().removeIf(p -> p.startsWith(path));
+        this.changed.keySet().removeIf(p -> p.startsWith(path));
+        this.moved.keySet().removeIf(p -> p.startsWith(path));
+        if (original) {
+            this.deleted.add(path);
+        }
+    }
+
+    /**
+     * Adds a key with a numeric value.
+     * Nothing happens if the key exists already.
+     * @param <T>
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @param value the value
+     * @throws GcfException if the group does not exist, or the key or the value is not valid
+     */
+    public <T extends Number> void addKey(final String groupPath, final String key, final T value)
+            throws GcfException {
+        addValue(groupPath, key, Value.of(value));
+    }
+
+    /**
+     * Adds a key with a string value.
+     * Nothing happens if the key exists already.
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @param value the value
+     * @throws GcfException if the group does not exist, or the key or the value is not valid
+     */
+    public void addKey(final String groupPath, final String key, final String value) throws GcfException {
+        addValue(groupPath, key, Value.of(value));
+    }
+
+    /**
+     * Adds a key with a boolean value.
+     * Nothing happens if the key exists already.
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @param value the value
+     * @throws GcfException if the group does not exist, or the key is not valid
+     */
+    public void addKey(final String groupPath, final String key, final boolean value) throws GcfException {
+        addValue(groupPath, key, Value.of(value));
+    }
+
+    /**
+     * Changes the value of an existing key to a numeric value.
+     * @param <T>
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @param value the value
+     * @throws GcfException if the group or the key does not exist, or the value is not valid
+     */
+    public <T extends Number> void changeValue(final String groupPath, final String key, final T value)
+            throws GcfException {
+        changeValue(groupPath, key, Value.of(value));
+    }
+
+    /**
+     * Changes the value of an existing key to a string value.
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @param value the value
+     * @throws GcfException if the group or the key does not exist, or the value is not valid
+     */
+    public void changeValue(final String groupPath, final String key, final String value) throws GcfException {
+        changeValue(groupPath, key, Value.of(value));
+    }
+
+    /**
+     * Deletes a key.
+     * Nothing happens if the key does not exist.
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @throws GcfException if the group does not exist
+     */
+    public void deleteKey(final String groupPath, final String key) throws GcfException {
+        final String path = absolute(groupPath);
+        checkExists(path);
+        if (current(path, key) == null) {
+            return;
+        }
+
+        final Map<String,Value> keys = this.added.get(path);
+        if (keys != null) {
+            keys.remove(key);
+        }
+        else {
+            this.changed.computeIfAbsent(path, p -> new LinkedHashMap<>()).put(key, null);
+            final Set<String> again = this.moved.get(path);
+            if (again != null) {
+                again.remove(key);
+            }
+        }
+    }
+
+    private void addValue(final String groupPath, final String key, final Value value) {
+        final String path = absolute(groupPath);
+        checkName(key, true);
+        checkValue(value);
+        checkExists(path);
+        if (current(path, key) != null) {
+            return;
+        }
+
+        final String symbol = this.buffer.symbols().intern(key);
+        final Map<String,Value> keys = this.added.get(path);
+        if (keys != null) {
+            keys.put(symbol, value);
+            return;
+        }
+        final Map<String,Value> changes = this.changed.computeIfAbsent(path, p -> new LinkedHashMap<>());
+        if (changes.containsKey(symbol)) {
+            // deleted before, added at the end again
+            changes.remove(symbol);
+            this.moved.computeIfAbsent(path, p -> new HashSet<>()).add(symbol);
+        }
+        changes.put(symbol, value);
+    }
+
+    private void changeValue(final String groupPath, final String key, final Value value) {
+        final String path = absolute(groupPath);
+        checkValue(value);
+        checkExists(path);
+        if (current(path, key) == null) {
+            throw new GcfException("cannot change value for key \""+key+"\" in group \""+path+"\". No such key!");
+        }
+
+        final Map<String,Value> keys = this.added.get(path);
+        if (keys != null) {
+            keys.put(key, value);
+        }
+        else {
+            this.changed.computeIfAbsent(path, p -> new LinkedHashMap<>()).put(key, value);
+        }
+    }
+
+    /**
+     * Gets the absolute path of a group with a trailing slash.
+     */
+    private String absolute(final String groupPath) {
+        if (this.applied) {
+            throw new GcfException("the batch was applied already");
+        }
+        final GroupPath path = this.buffer.groupChanger().path(groupPath);
+        if (!path.isAbsolute()) {
+            throw new GcfException("passed relative group path \""+groupPath+"\" to a batch");
+        }
+        return path.absolutePath();
+    }
+
+    /**
+     * Gets the path of the parent of a group.
+     */
+    private static String parentOf(final String path) {
+        return path.substring(0, path.lastIndexOf('/', path.length() - 2) + 1);
+    }
+
+    /**
+     * Checks if a group exists with the changes staged so far.
+     */
+    private boolean exists(final String path) {
+        return this.added.containsKey(path) || (!gone(path) && this.buffer.containsGroup(path));
+    }
+
+    private void checkExists(final String path) {
+        if (!exists(path)) {
+            throw new GcfException("group \""+path+"\" does not exist");
+        }
+    }
+
+    /**
+     * Checks if a group of the buffer, or one of its parents, is deleted.
+     */
+    private boolean gone(final String path) {
+        if (this.deleted.isEmpty()) {
+            return false;
+        }
+        for (int end = path.length(); end > 1; end = path.lastIndexOf('/', end - 2) + 1) {
+            if (this.deleted.contains(path.substring(0, end))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the value of a key with the changes staged so far.
+     * @return the value, null if there is no such key
+     */
+    private Value current(final String path, final String key) {
+        final Map<String,Value> keys = this.added.get(path);
+        if (keys != null) {
+            return keys.get(key);
+        }
+        final Map<String,Value> changes = this.changed.get(path);
+        if (changes != null && changes.containsKey(key)) {
+            return changes.get(key);
+        }
+        final Group group = this.buffer.getGroup(path);
+        return group.hasKey(key) ? group.value(key) : null;
+    }
+
+    /**
+     * Checks that a key or a group name is read back as such,
+     * see <code>GcfLexer</code>.
+     */
+    private static void checkName(final String name, final boolean key) {
+        boolean valid = !name.isEmpty()
+                && (Character.isLetter(name.charAt(0)) || (!key && isNumber(name.charAt(0))));
+        for (int i = 1; valid && i < name.length(); i++) {
+            final char c = name.charAt(i);
+            valid = Character.isLetter(c) || isNumber(c) || c == '_' || c == '-' || c == '.';
+        }
+        if (!valid) {
+            throw new GcfException((key ? "key" : "group name")+" \""+name+"\" is not valid");
+        }
+    }
+
+    private static boolean isNumber(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Checks that a value is read back as the same value.
+     */
+    private static void checkValue(final Value value) {
+        switch (value.getType()) {
+            case STRING:
+                final String text = value.toString();
+                if (text.indexOf('"') >= 0 || text.indexOf('\n') >= 0) {
+                    throw new GcfException("string "+text+" must not contain double quotes or line breaks");
+                }
+                break;
+            case DOUBLE:
+                if (!Double.isFinite(value.asDouble())) {
+                    throw new GcfException("value "+value+" is not a finite number");
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Applies the staged changes: the groups are deleted, the keys of the
+     * other groups are changed, each group under one lock, and the groups
+     * are added, each with its keys before it is linked to its parent.
+     * Every group is copied before it is changed, so if applying fails 
+     * half way, e.g. since another thread deleted a group through the 
+     * <code>Group</code> methods meanwhile, the groups changed so far 
+     * are put back as they were.
+     * @return the differences from the settings before
+     * @throws GcfException if the changes cannot be applied, nothing is changed then
+     */
+    List<Difference> apply() throws GcfException {
+        this.applied = true;
+        final Deque<Runnable> undo = new ArrayDeque<>();
+        try {
+            return apply(undo, new IdentityHashMap<>());
+        } catch(RuntimeException ex) {
+            while (!undo.isEmpty()) {
+                undo.pop().run();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Applies the staged changes, recording how to undo them.
+     * @param undo filled with the steps undoing the changes, the last one first
+     * @param saved the groups copied so far, with their copies
+     * @return the differences from the settings before
+     */
+    private List<Difference> apply(final Deque<Runnable> undo, final Map<Group,Group.State> saved) {
+        final List<Difference> differences = new ArrayList<>();
+        for (String path : this.deleted) {
+            final Group group = this.buffer.containsGroup(path) ? this.buffer.getGroup(path) : null;
+            final Group parent = (group == null) ? null : this.buffer.parentOf(group);
+            if (parent != null) {
+                save(parent, undo, saved);
+                undo.push(() -> this.buffer.restoreGroup(group));
+                parent.deleteSubGroup(group.getName());
+                differences.add(new Difference(Difference.Kind.REMOVED, path, null, null, null));
+            }
+        }
+
+        for (Map.Entry<String,Map<String,Value>> changes : this.changed.entrySet()) {
+            final String path = changes.getKey();
+            if (!this.buffer.containsGroup(path)) {
+                continue;
+            }
+            final Group group = this.buffer.getGroup(path);
+            final Group.State before = save(group, undo, saved);
+            for (Map.Entry<String,Value> kv : changes.getValue().entrySet()) {
+                final Value old = before.keys.get(kv.getKey());
+                final Value value = kv.getValue();
+                if (old == null && value != null) {
+                    differences.add(new Difference(Difference.Kind.ADDED, path, kv.getKey(), null, value));
+                }
+                else if (old != null && value == null) {
+                    differences.add(new Difference(Difference.Kind.REMOVED, path, kv.getKey(), old, null));
+                }
+                else if (old != null && !old.equals(value)) {
+                    differences.add(new Difference(Difference.Kind.CHANGED, path, kv.getKey(), old, value));
+                }
+            }
+            group.apply(changes.getValue(), this.moved.getOrDefault(path, Collections.emptySet()));
+        }
+
+        for (Map.Entry<String,Map<String,Value>> group : this.added.entrySet()) {
+            final String path = group.getKey();
+            final String parentPath = parentOf(path);
+            final Group parent = this.buffer.getGroup(parentPath);
+            final Group child = new Group(parentPath, path.substring(parentPath.length(), path.length() - 1),
+                                          this.buffer, this.buffer.groupChanger());
+            for (Map.Entry<String,Value> kv : group.getValue().entrySet()) {
+                child.loadValue(kv.getKey(), kv.getValue());
+            }
+            save(parent, undo, saved);
+            undo.push(() -> this.buffer.forgetGroup(child));
+            parent.addSubGroup(child);
+            differences.add(new Difference(Difference.Kind.ADDED, child.getPath(), null, null, null));
+        }
+        return differences;
+    }
+
+    /**
+     * Copies a group the first time it is changed, and records 
+     * how to put the copy back.
+     * @param group the group
+     * @param undo the steps undoing the changes
+     * @param saved the groups copied so far, with their copies
+     * @return the copy
+     */
+    private static Group.State save(final Group group, final Deque<Runnable> undo, 
+                                    final Map<Group,Group.State> saved) {
+        Group.State state = saved.get(group);
+        if (state == null) {
+            final Group.State copy = group.state();
+            undo.push(() -> group.restore(copy));
+            saved.put(group, copy);
+            state = copy;
+        }
+        return state;
+    }
+}
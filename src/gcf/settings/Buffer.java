@@ -17,16 +17,22 @@
 package gcf.settings;
 
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Holds all parsed data.
  * This class defines a wrapper around the map that holds all groups 
  * per absolute group path.
+ * Besides the map, every group holds its sub groups, so the groups 
+ * also form a tree below the root group.<br>
+ * The map is concurrent, the order of the groups is kept by the tree.
  * It defines convinience methods to make data handling more easy and readable.
  */
 final class Buffer {
@@ -34,12 +40,38 @@ final class Buffer {
     /* Map to hold all parsed group data */
     private final Map<String,Group> content;
     
+    /* Table interning keys, group names and paths */
+    private final SymbolTable symbols;
+    
+    /* The root group, holding the global keys and the top level groups */
+    private final Group root;
+    
+    /* Resolves the group paths within this buffer */
+    private final GroupChanger groupChanger;
+    
+    /* Counts the changes of keys and group links, see Group.contentHash() */
+    private final AtomicLong changes = new AtomicLong();
+    
+    /* The bytes the groups were read from or last written to, null if unknown */
+    private volatile ByteBuffer source;
+    
+    /* The file holding the source */
+    private File sourceFile;
+    
+    /* The modification time of the file when the source was read or written */
+    private long sourceModified;
+    
+    /* True if the groups keep the spans of their keys in the source */
+    private boolean lossless;
+    
     /**
      * Creates and initiates the buffer.
      * Adds the root group to the main map container.
+     * @param symbols table interning keys, group names and paths
      */
-    /*package-privat*/ Buffer() {
-         this.content = new LinkedHashMap<>();
+    /*package-privat*/ Buffer(final SymbolTable symbols) {
+         this.content = new ConcurrentHashMap<>();
+         this.symbols = symbols;
          
          /*
           * Add the root group to the content map.
@@ -48,40 +80,103 @@ final class Buffer {
           * But is important to list all top level groups 
           * and to hold the global keys.
           */
-         final Group rootGroup = new Group("", "/", this);
-         this.content.put(rootGroup.getName(), rootGroup);
+         this.root = new Group("", "/", this);
+         this.content.put(this.root.getName(), this.root);
+         this.groupChanger = new GroupChanger(this);
+    }
+    
+    /**
+     * Creates a buffer sharing the root group and symbol table 
+     * of a main buffer.
+     * A part of the configuration, e.g. a top level group, can 
+     * be parsed into such a buffer independently of other parts,
+     * since the global keys are read from the shared root group.
+     * The root group must not be changed while the buffer is filled,
+     * so it is not part of the content and top level groups are 
+     * not linked to it. The content is then moved with <code>merge</code>.
+     * @param main the main buffer
+     */
+    /*package-privat*/ Buffer(final Buffer main) {
+        this.content = new LinkedHashMap<>();
+        this.symbols = main.symbols;
+        this.root = main.root;
+        this.groupChanger = main.groupChanger;
+        this.lossless = main.lossless;
+    }
+    
+    /**
+     * Moves all groups of a buffer created with <code>Buffer(Buffer)</code>
+     * into this buffer, in the order they were added to it.
+     * The top level groups still have to be added with <code>addTopGroup</code>.
+     * @param part the buffer to be merged
+     */
+    /*package-privat*/ void merge(final Buffer part) {
+        for (Group group : part.content.values()) {
+            group.attach(this);
+            addGroup(group);
+        }
+    }
+    
+    /**
+     * Makes the groups parsed from now on keep the spans of their keys,
+     * for the option <code>LOSSLESS</code>, see <code>Span</code>.
+     */
+    /*package-privat*/ void keepLayout() {
+        this.lossless = true;
+        this.root.keepLayout();
+    }
+    
+    /**
+     * Checks if the groups keep the spans of their keys.
+     * @return true for the option <code>LOSSLESS</code>
+     */
+    /*package-privat*/ boolean lossless() {
+        return this.lossless;
+    }
+    
+    /**
+     * Gets the group changer resolving the group paths within this buffer.
+     * @return the group changer
+     */
+    /*package-privat*/ GroupChanger groupChanger() {
+        return this.groupChanger;
+    }
+    
+    /**
+     * Gets the table interning keys, group names and paths.
+     * Since the group paths are interned, map lookups with a path 
+     * taken from a group hit on identity.
+     * @return the symbol table
+     */
+    /*package-privat*/ SymbolTable symbols() {
+        return this.symbols;
     }
     
     /**
      * Gets the value corrsponding to a global key.
      * If the key doesn't exist an exception is thrown.
-     * The return is an Object since this is the way that 
-     * the values to the keys are stored internally.
      * @param globalKey the global key
-     * @return value with respect to the key as an object
+     * @return value with respect to the key
      */
-    /*package-privat*/ Object getGlobalValue(final String globalKey) throws GcfException {
-        final Group rootGroup = this.content.get("/");
-        if (!rootGroup.hasKey(globalKey)) {
+    /*package-privat*/ Value getGlobalValue(final String globalKey) throws GcfException {
+        if (!this.root.hasKey(globalKey)) {
             throw new GcfException("no global key \""+globalKey+"\"");
         }
         
-        return rootGroup.readValue(globalKey);
+        return this.root.value(globalKey);
     }
     
     /**
      * Adds a key/value as a global key, so that it can be
      * later referenced in the config file.
-     * The value is passed as an Object since all values 
-     * are internally stored as such.
      * To make the key/value global they are added as 
      * child elements of the root group \"/\", which 
      * is not visible to the client.
-     * @param key the key 
-     * @param obj the value
+     * @param kv the parsed key/value
      */
-    /*package-privat*/ void addGlobalKey(final String key, final Object obj) {
-        this.content.get("/").addObjKey(key,obj);
+    /*package-privat*/ void addGlobalKey(final KeyValue kv) {
+        this.root.loadValue(kv.getKey(), kv.getValue());
+        this.root.keep(kv, 0);
     }
     
     /**
@@ -90,18 +185,99 @@ final class Buffer {
      */
     /*package-privat*/ void addTopGroup(final Group group) {
         // add to the main data buffer
-        this.content.putIfAbsent(group.getPath(), group);
+        final Group existing = this.content.putIfAbsent(group.getPath(), group);
+        if (existing != null && existing != group) {
+            merged(existing, this.root);
+        }
         
         // set as subgroup of the root group
-        this.content.get("/").addSubGroup(group);
+        this.root.link(group);
     }
     
     /**
-     * Adds a group to the container.
+     * Adds a group to the container and links it to its parent group.
+     * A group must be added before its sub groups, since they are 
+     * linked to the group found under their parent path.
+     * If there is already a group with the same path, neither 
+     * the group nor its link is replaced.
      * @param group the group to add
      */
     /*package-privat*/ void addGroup(final Group group) {
-        this.content.putIfAbsent(group.getPath(), group);
+        final Group existing = this.content.putIfAbsent(group.getPath(), group);
+        
+        final Group parent = this.content.get(group.getParent());
+        if (existing != null && existing != group) {
+            merged(existing, parent);
+        }
+        if (parent != null) {
+            parent.link(group);
+        }
+    }
+    
+    /**
+     * Marks a group and its parent dirty if another group with the same 
+     * path was added, e.g. a second group with the same name in the source.
+     * The content of the group then no longer matches its bytes in 
+     * the source, nor does the order of the sub groups of the parent.
+     * The group is no longer located either, since the sub groups of 
+     * the other group are located relative to the other group, and 
+     * the spans of the parent do not cover the other group.
+     * @param existing the group kept
+     * @param parent the parent of the group, or null
+     */
+    private void merged(final Group existing, final Group parent) {
+        existing.locate(-1, 0, 0, 0);
+        existing.markDirty();
+        if (parent != null) {
+            parent.dropSpans();
+            parent.markDirty();
+        }
+    }
+    
+    /**
+     * Sets the bytes the groups were read from or written to.
+     * The groups are located in the source relative to their parents, 
+     * the root group spanning the whole source.
+     * @param source the bytes, from position 0 to the limit
+     * @param file the file holding the bytes
+     * @param modified the modification time of the file when the bytes were read or written
+     */
+    /*package-privat*/ void attachSource(final ByteBuffer source, final File file, final long modified) {
+        this.root.locate(0, 0, source.limit(), source.limit());
+        this.sourceFile = file;
+        this.sourceModified = modified;
+        this.source = source;
+    }
+    
+    /**
+     * Gets the file holding the source.
+     * @return the file, or null if there is no source
+     */
+    /*package-privat*/ File sourceFile() {
+        return (this.source == null) ? null : this.sourceFile;
+    }
+    
+    /**
+     * Forgets the source, e.g. if writing it failed, so that all groups 
+     * are written anew the next time.
+     */
+    /*package-privat*/ void detachSource() {
+        this.source = null;
+    }
+    
+    /**
+     * Gets the bytes the groups were read from or last written to.
+     * The source is only returned as long as its file was not changed 
+     * since, since a mapped source changes with the file.
+     * @return the source, or null if there is none or its file was changed
+     */
+    /*package-privat*/ ByteBuffer source() {
+        final ByteBuffer current = this.source;
+        if (current == null || this.sourceFile.length() != current.limit() 
+                || this.sourceFile.lastModified() != this.sourceModified) {
+            return null;
+        }
+        return current;
     }
     
     /**
@@ -123,13 +299,39 @@ final class Buffer {
      * @throws GcfException
      */
     /*package-privat*/ Group getGroup(final String absoluteGroupPath) throws GcfException {
-        if (this.content.containsKey(absoluteGroupPath) == false) {
+        final Group group = this.content.get(absoluteGroupPath);
+        if (group == null) {
             throw new GcfException(
                         "group \"" + absoluteGroupPath + "\" does not exist"
                         );
         }
         
-        return this.content.get(absoluteGroupPath);
+        return group;
+    }
+    
+    /**
+     * Gets the parent of a group.
+     * @param group the group
+     * @return the parent group, null for the root group
+     */
+    /*package-privat*/ Group parentOf(final Group group) {
+        return this.content.get(group.getParent());
+    }
+    
+    /**
+     * Counts a change of a key or of a group link.
+     * @return the number of changes so far
+     */
+    /*package-privat*/ long changed() {
+        return this.changes.incrementAndGet();
+    }
+    
+    /**
+     * Gets the number of changes of keys and group links so far.
+     * @return the number of changes
+     */
+    /*package-privat*/ long changes() {
+        return this.changes.get();
     }
     
     /**
@@ -138,21 +340,67 @@ final class Buffer {
      * @return unmodifiable collection of sub groups
      */
     Collection<Group> subGroupsForPath(final String groupPath) {
-        return Collections.unmodifiableCollection(
-            this.content
-                .entrySet()
-                .stream()
-                .map(e -> e.getValue())
-                .filter(g -> g.getParent().equals(groupPath))
-                .collect(Collectors.toList())
-        );
+        final Group group = this.content.get(groupPath);
+        if (group == null) {
+            return Collections.emptyList();
+        }
+        
+        return group.childGroups();
     }
     
     /**
      * Deletes the subgroup and all its subgroups for the specified path.
+     * Only the deleted groups are visited.
      * @param groupPath absolute group path
      */
     void deleteSubGroup(final String groupPath) {
-        this.content.entrySet().removeIf(e -> e.getKey().startsWith(groupPath));
+        final Group group = this.content.get(groupPath);
+        if (group == null) {
+            return;
+        }
+        
+        final Group parent = this.content.get(group.getParent());
+        if (parent != null) {
+            parent.unlink(group.getName());
+        }
+        remove(group);
+    }
+    
+    /**
+     * Puts a deleted group and all its subgroups back into the container,
+     * e.g. if applying a batch fails. The parent links the group again 
+     * when its state is restored.
+     * @param group the deleted group
+     */
+    /*package-privat*/ void restoreGroup(final Group group) {
+        this.content.put(group.getPath(), group);
+        for (Group child : group.childGroups()) {
+            restoreGroup(child);
+        }
+    }
+    
+    /**
+     * Takes an added group and all its subgroups out of the container 
+     * again, e.g. if applying a batch fails, unless another group with 
+     * the same path was added meanwhile.
+     * @param group the added group
+     */
+    /*package-privat*/ void forgetGroup(final Group group) {
+        if (this.content.remove(group.getPath(), group)) {
+            for (Group child : group.childGroups()) {
+                forgetGroup(child);
+            }
+        }
+    }
+    
+    /**
+     * Removes a group and all its subgroups from the container.
+     * @param group the group to remove
+     */
+    private void remove(final Group group) {
+        this.content.remove(group.getPath());
+        for (Group child : group.childGroups()) {
+            remove(child);
+        }
     }
 }
@@ -0,0 +1,181 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A difference between two versions of the settings, as found
+ * by <code>Settings.diff</code> or <code>Group.diff</code>.
+ * A difference is either a key that was added, removed or changed,
+ * or a whole group that was added or removed; the keys and sub
+ * groups of an added or removed group are not listed on their own.
+ * <blockquote>
+ * <pre>
+ *     for (Difference d : oldSettings.diff(newSettings)) {
+ *         System.out.println(d); // e.g. CHANGED /Servers/S1/port: 80 -&gt; 81
+ *     }
+ * </pre>
+ * </blockquote>
+ * The global keys are reported with the group path <code>/</code>.
+ */
+public final class Difference {
+
+    /**
+     * The kind of a difference.
+     */
+    public enum Kind {
+        /** The key or group exists only in the newer version */
+        ADDED,
+        /** The key or group exists only in the older version */
+        REMOVED,
+        /** The key has different values */
+        CHANGED
+    }
+
+    /* The kind of the difference */
+    private final Kind kind;
+
+    /* The absolute path of the group */
+    private final String path;
+
+    /* The key, null if a whole group differs */
+    private final String key;
+
+    /* The value of the older version, null if there is none */
+    private final Value oldValue;
+
+    /* The value of the newer version, null if there is none */
+    private final Value newValue;
+
+    Difference(final Kind kind, final String path, final String key,
+               final Value oldValue, final Value newValue) {
+        this.kind = kind;
+        this.path = path;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    /**
+     * Finds the differences between two versions of a group.
+     * Sub groups with the same content hash are skipped, so only
+     * the changed parts of the two trees are visited.
+     * @param older the older version
+     * @param newer the newer version
+     * @return the differences, in the order of the older and then of the newer version
+     */
+    static List<Difference> between(final Group older, final Group newer) {
+        final List<Difference> differences = new ArrayList<>();
+        collect(older, newer, differences);
+        return differences;
+    }
+
+    private static void collect(final Group older, final Group newer, final List<Difference> differences) {
+        if (older.contentHash() == newer.contentHash()) {
+            return;
+        }
+
+        final String path = newer.getPath();
+        final Map<String,Value> oldKeys = older.values();
+        final Map<String,Value> newKeys = newer.values();
+        for (Map.Entry<String,Value> kv : oldKeys.entrySet()) {
+            final Value value = newKeys.get(kv.getKey());
+            if (value == null) {
+                differences.add(new Difference(Kind.REMOVED, path, kv.getKey(), kv.getValue(), null));
+            }
+            else if (!value.equals(kv.getValue())) {
+                differences.add(new Difference(Kind.CHANGED, path, kv.getKey(), kv.getValue(), value));
+            }
+        }
+        for (Map.Entry<String,Value> kv : newKeys.entrySet()) {
+            if (!oldKeys.containsKey(kv.getKey())) {
+                differences.add(new Difference(Kind.ADDED, path, kv.getKey(), null, kv.getValue()));
+            }
+        }
+
+        for (Group child : older.children()) {
+            final Group other = newer.child(child.getName());
+            if (other == null) {
+                differences.add(new Difference(Kind.REMOVED, child.getPath(), null, null, null));
+            }
+            else {
+                collect(child, other, differences);
+            }
+        }
+        for (Group child : newer.children()) {
+            if (older.child(child.getName()) == null) {
+                differences.add(new Difference(Kind.ADDED, child.getPath(), null, null, null));
+            }
+        }
+    }
+
+    /**
+     * Gets the kind of the difference.
+     * @return the kind
+     */
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    /**
+     * Gets the absolute path of the group that differs or
+     * that holds the key that differs.
+     * @return the absolute path, with a trailing slash
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Gets the key that differs.
+     * @return the key, null if a whole group was added or removed
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Gets the value of the older version.
+     * @return the value as Integer, Long, Double, Boolean or String,
+     *         null if the key was added or a group differs
+     */
+    public Object getOldValue() {
+        return (this.oldValue == null) ? null : this.oldValue.toObject();
+    }
+
+    /**
+     * Gets the value of the newer version.
+     * @return the value as Integer, Long, Double, Boolean or String,
+     *         null if the key was removed or a group differs
+     */
+    public Object getNewValue() {
+        return (this.newValue == null) ? null : this.newValue.toObject();
+    }
+
+    @Override
+    public String toString() {
+        final String where = (this.key == null) ? this.path : this.path + this.key;
+        switch (this.kind) {
+            case CHANGED: return this.kind + " " + where + ": " + this.oldValue + " -> " + this.newValue;
+            case ADDED:   return this.kind + " " + where + ((this.newValue == null) ? "" : ": " + this.newValue);
+            default:      return this.kind + " " + where + ((this.oldValue == null) ? "" : ": " + this.oldValue);
+        }
+    }
+}
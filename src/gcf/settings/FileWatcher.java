@@ -0,0 +1,129 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a file and runs an action on a daemon thread when
+ * it was changed.
+ * The directory of the file is watched, so that a file replaced
+ * by a rename, as editors and deployment tools often do, is seen
+ * as well. Changes following each other within the quiet period
+ * run the action only once, after the last change.
+ */
+final class FileWatcher implements Runnable {
+
+    /* Time without changes before the action is run */
+    private static final long QUIET_PERIOD_MS = 250;
+
+    /* The name of the watched file within its directory */
+    private final Path fileName;
+
+    /* The action run after a change */
+    private final Runnable action;
+
+    /* The watch service of the directory */
+    private final WatchService service;
+
+    /**
+     * Starts watching a file.
+     * @param file the file to watch
+     * @param action the action to run after a change
+     * @throws GcfException if the directory cannot be watched
+     */
+    FileWatcher(final File file, final Runnable action) throws GcfException {
+        final Path path = file.getAbsoluteFile().toPath();
+        this.fileName = path.getFileName();
+        this.action = action;
+        try {
+            this.service = FileSystems.getDefault().newWatchService();
+            path.getParent().register(this.service,
+                                      StandardWatchEventKinds.ENTRY_CREATE,
+                                      StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch(IOException ex) {
+            throw new GcfException("cannot watch "+file.getAbsolutePath()+" for changes");
+        }
+
+        final Thread thread = new Thread(this, "gcf-watcher-"+this.fileName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for changes until the watcher is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (!changed(this.service.take())) {
+                    continue;
+                }
+
+                // wait until the file is quiet, e.g. completely written
+                WatchKey key;
+                while ((key = this.service.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS)) != null) {
+                    changed(key);
+                }
+                try {
+                    this.action.run();
+                } catch(RuntimeException ex) {
+                    GcfWarning.printWarning("error while handling a change of "+this.fileName+": "+ex);
+                }
+            }
+        } catch(InterruptedException | ClosedWatchServiceException ex) {
+            // closed
+        }
+    }
+
+    /**
+     * Checks if the events of a key concern the watched file.
+     * The key is reset to receive further events.
+     * @param key the signalled key
+     * @return true if the watched file was changed
+     */
+    private boolean changed(final WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || this.fileName.equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Stops watching, the thread ends.
+     */
+    void close() {
+        try {
+            this.service.close();
+        } catch(IOException ex) {
+            // nothing left to release
+        }
+    }
+}
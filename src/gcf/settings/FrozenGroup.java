@@ -0,0 +1,317 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable copy of a group, as created by <code>Settings.freeze()</code>.
+ * It offers the same read methods as a <code>Group</code>.<br>
+ * The keys and sub groups are held in arrays indexed by a perfect
+ * hash, so a lookup is one probe and one string comparison, and
+ * no lock is needed: a frozen group can be read from any thread.
+ */
+public final class FrozenGroup {
+
+    /* The name of the group */
+    private final String name;
+
+    /* The path of the parent group */
+    private final String parent;
+
+    /* The absolute path of the group */
+    private final String path;
+
+    /* The parent group, null for the root group */
+    private final FrozenGroup parentGroup;
+
+    /* The keys, in the slots of the key hash */
+    private final String[] keys;
+
+    /* The values, in the same slots as their keys */
+    private final Value[] values;
+
+    /* The slots of the keys, in the order of the file */
+    private final int[] order;
+
+    /* Maps a key to its slot */
+    private final PerfectHash keyHash;
+
+    /* The sub groups, in the slots of the child hash */
+    private final FrozenGroup[] children;
+
+    /* The slots of the sub groups, in the order of the file */
+    private final int[] childOrder;
+
+    /* Maps the name of a sub group to its slot */
+    private final PerfectHash childHash;
+
+    /**
+     * Freezes a group and all its sub groups.
+     * @param group the group to freeze
+     * @param parentGroup the frozen parent group, null for the root group
+     * @param all receives the frozen group and all its sub groups
+     */
+    FrozenGroup(final Group group, final FrozenGroup parentGroup, final List<FrozenGroup> all) {
+        this.name = group.getName();
+        this.parent = group.getParent();
+        this.path = group.getPath();
+        this.parentGroup = parentGroup;
+        all.add(this);
+
+        final Map<String,Value> groupValues = group.values();
+        final String[] keyOrder = groupValues.keySet().toArray(new String[groupValues.size()]);
+        this.keyHash = PerfectHash.build(keyOrder);
+        this.keys = new String[keyOrder.length];
+        this.values = new Value[keyOrder.length];
+        this.order = new int[keyOrder.length];
+        for (int i=0; i<keyOrder.length; i++) {
+            final int slot = this.keyHash.slot(keyOrder[i]);
+            this.keys[slot] = keyOrder[i];
+            this.values[slot] = groupValues.get(keyOrder[i]);
+            this.order[i] = slot;
+        }
+
+        final List<Group> groups = group.children();
+        final String[] names = new String[groups.size()];
+        for (int i=0; i<names.length; i++) {
+            names[i] = groups.get(i).getName();
+        }
+        this.childHash = PerfectHash.build(names);
+        this.children = new FrozenGroup[names.length];
+        this.childOrder = new int[names.length];
+        for (int i=0; i<names.length; i++) {
+            final int slot = this.childHash.slot(names[i]);
+            this.children[slot] = new FrozenGroup(groups.get(i), this, all);
+            this.childOrder[i] = slot;
+        }
+    }
+
+    /**
+     * Gets the group's name.
+     * @return the name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Gets the group's path.
+     * @return the path
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Gets the group's parent.
+     * @return the parent
+     */
+    public String getParent() {
+        return this.parent;
+    }
+
+    /**
+     * Gets the parent group.
+     * @return the parent group, null for the root group
+     */
+    FrozenGroup parentGroup() {
+        return this.parentGroup;
+    }
+
+    /**
+     * Gets a sub group by its name.
+     * @param childName the name of the sub group
+     * @return the sub group, null if there is none with that name
+     */
+    FrozenGroup child(final String childName) {
+        final int slot = this.childHash.slot(childName);
+        if (slot < 0 || !this.children[slot].name.equals(childName)) {
+            return null;
+        }
+
+        return this.children[slot];
+    }
+
+    /**
+     * Gets all childgroups as an unmodifiable collection.
+     * @return the subgroups
+     */
+    public Collection<FrozenGroup> childGroups() {
+        final List<FrozenGroup> groups = new ArrayList<>(this.childOrder.length);
+        for (int slot : this.childOrder) {
+            groups.add(this.children[slot]);
+        }
+        return Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Gets all subkeys as an unmodifiable collection.
+     * @return the subkeys
+     */
+    public Collection<String> childKeys() {
+        final String[] keyOrder = new String[this.order.length];
+        for (int i=0; i<keyOrder.length; i++) {
+            keyOrder[i] = this.keys[this.order[i]];
+        }
+        return Collections.unmodifiableList(Arrays.asList(keyOrder));
+    }
+
+    /**
+     * Checks if a key exists within this group.
+     * @param key the key string
+     * @return true if the key exists in this group, false otherwise
+     */
+    public boolean hasKey(final String key) {
+        final int slot = this.keyHash.slot(key);
+        return slot >= 0 && this.keys[slot].equals(key);
+    }
+
+    /**
+     * Retrieves a subgroup within this group.
+     * The path is relative to this group, e.g. <code>Sub/</code>
+     * or <code>../Other/</code>.
+     * If the relative group is not present, an exception is thrown.
+     * @param groupPath the relative group path
+     * @return the group object
+     */
+    public FrozenGroup getGroup(final String groupPath) throws GcfException {
+        return getGroup(GroupPath.of(groupPath));
+    }
+
+    /**
+     * Retrieves a subgroup within this group by a parsed path.
+     * If the relative group is not present, an exception is thrown.
+     * If the group path passed is absolute, an exception is thrown.
+     * @param groupPath the relative group path
+     * @return the group object
+     */
+    public FrozenGroup getGroup(final GroupPath groupPath) throws GcfException {
+        if (groupPath.isAbsolute()) {
+            throw new GcfException("passed absolute group path to retrieve sub group");
+        }
+
+        return groupPath.resolve(this);
+    }
+
+    /**
+     * Gets the typed value of a key.
+     * If the key is not present within this group,
+     * an exception is thrown.
+     * @param key the key string
+     * @return the value
+     */
+    Value value(final String key) throws GcfException {
+        final int slot = this.keyHash.slot(key);
+        if (slot < 0 || !this.keys[slot].equals(key)) {
+            throw new GcfException("no key \""+key+"\" in group \""+this.path+"\"");
+        }
+
+        return this.values[slot];
+    }
+
+    /**
+     * Reads a value as a short.
+     * If the key is not present or if the value
+     * cannot be represented as a short, an exception
+     * is thrown.
+     * @param key the key string
+     * @return the value as a short
+     */
+    public short readShort(final String key) throws GcfException {
+        return value(key).asShort();
+    }
+
+    /**
+     * Reads a value as a int.
+     * If the key is not present or if the value
+     * cannot be represented as a int, an exception
+     * is thrown.
+     * @param key the key string
+     * @return the value as an int
+     */
+    public int readInt(final String key) throws GcfException {
+        return value(key).asInt();
+    }
+
+    /**
+     * Reads a value as a float.
+     * If the key is not present or if the value
+     * is not a number, an exception is thrown.
+     * @param key the key string
+     * @return the value as a float
+     */
+    public float readFloat(final String key) throws GcfException {
+        return value(key).asFloat();
+    }
+
+    /**
+     * Reads a value as a double.
+     * If the key is not present or if the value
+     * is not a number, an exception is thrown.
+     * @param key the key string
+     * @return the value as a double
+     */
+    public double readDouble(final String key) throws GcfException {
+        return value(key).asDouble();
+    }
+
+    /**
+     * Reads the key's value as a string.
+     * If the key is not present in this group an exception
+     * is thrown.
+     * If the value is not defined as a string in the file, a warning
+     * is printed.
+     * @param key the key string
+     * @return the value as a string
+     */
+    public String readString(final String key) throws GcfException {
+        final Value value = value(key);
+        if (value.getType() != ValueType.STRING) {
+            final String msg = String.format("value for key \"%s\" in group %s is not a string. Use appropriate type.",
+                                             key,this.path);
+            GcfWarning.printWarning(msg);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Gets the key value as a boolean.
+     * If the key is not present within this group an exception
+     * is thrown.
+     * If the value is not a boolean an exception is thrown.
+     * @param key the key string
+     * @return the value as a boolean
+     */
+    public boolean readBoolean(final String key) throws GcfException {
+        final Value value = value(key);
+        if (value.getType() == ValueType.BOOLEAN || value.getType() == ValueType.STRING) {
+            try {
+                return value.asBoolean();
+            } catch(GcfException ex) {
+                // reported below
+            }
+        }
+
+        throw new GcfException("value for key \""+key+"\" is not a boolean");
+    }
+}
@@ -0,0 +1,127 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable copy of the settings, as created by <code>Settings.freeze()</code>.
+ * <blockquote>
+ * <pre>
+ *     final FrozenSettings frozen = new Settings(someFile).freeze();
+ *     final int nr = frozen.getGroup("/Constants/Sub/").readInt("nr");
+ * </pre>
+ * </blockquote>
+ * All groups are found by their absolute path with a single probe
+ * into an array indexed by a perfect hash over all paths.<br>
+ * All fields are final and nothing is changed after construction,
+ * so the instance can be handed to other threads without any
+ * synchronization and read from all of them without locking.
+ */
+public final class FrozenSettings {
+
+    /* The root group, holding the top level groups */
+    private final FrozenGroup root;
+
+    /* The absolute paths of all groups, in the slots of the path hash */
+    private final String[] paths;
+
+    /* The groups, in the same slots as their paths */
+    private final FrozenGroup[] groups;
+
+    /* Maps an absolute path to its slot */
+    private final PerfectHash pathHash;
+
+    /**
+     * Freezes the root group and all groups below it.
+     * @param root the root group
+     */
+    FrozenSettings(final Group root) {
+        final List<FrozenGroup> all = new ArrayList<>();
+        this.root = new FrozenGroup(root, null, all);
+
+        final String[] allPaths = new String[all.size()];
+        for (int i=0; i<allPaths.length; i++) {
+            allPaths[i] = all.get(i).getPath();
+        }
+        this.pathHash = PerfectHash.build(allPaths);
+        this.paths = new String[allPaths.length];
+        this.groups = new FrozenGroup[allPaths.length];
+        for (int i=0; i<allPaths.length; i++) {
+            final int slot = this.pathHash.slot(allPaths[i]);
+            this.paths[slot] = allPaths[i];
+            this.groups[slot] = all.get(i);
+        }
+    }
+
+    /**
+     * Gets a group by its name or full path.
+     * A relative path starts at the root group.
+     * @param absGroupPath the absolute path of the group requested
+     * @return the group requested with respect to the absolute path
+     * @throws GcfException if there is no such group
+     */
+    public FrozenGroup getGroup(final String absGroupPath) throws GcfException {
+        if (absGroupPath.startsWith("/") && absGroupPath.length() > 1) {
+            return group(GroupChanger.formatPath(absGroupPath));
+        }
+
+        return getGroup(GroupPath.of(absGroupPath));
+    }
+
+    /**
+     * Gets a group by its parsed path.
+     * A relative path starts at the root group.
+     * @param groupPath the path of the group requested
+     * @return the group requested with respect to the path
+     * @throws GcfException if there is no such group
+     */
+    public FrozenGroup getGroup(final GroupPath groupPath) throws GcfException {
+        if (groupPath.isAbsolute()) {
+            return group(groupPath.absolutePath());
+        }
+
+        return groupPath.resolve(this.root);
+    }
+
+    /**
+     * Gets the top level child groups.
+     * @return collection of the top level groups.
+     */
+    public Collection<FrozenGroup> childGroups() {
+        return this.root.childGroups();
+    }
+
+    /**
+     * Looks up a group by its absolute path.
+     * @param absolutePath the absolute path, with a trailing slash
+     * @return the group
+     * @throws GcfException if there is no such group
+     */
+    private FrozenGroup group(final String absolutePath) throws GcfException {
+        final int slot = this.pathHash.slot(absolutePath);
+        if (slot < 0 || !this.paths[slot].equals(absolutePath)) {
+            throw new GcfException(
+                        "group \"" + absolutePath + "\" does not exist"
+                        );
+        }
+
+        return this.groups[slot];
+    }
+}
@@ -19,8 +19,12 @@ package gcf.settings;
 /**
  * Defines an exception to throw when something related to the
  * configuration file goes wrong.
+ * It is public, since it is handed to a <code>SettingsListener</code>
+ * if a reload fails.
  */
-class GcfException extends RuntimeException {
+public class GcfException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
 
     public GcfException(String message) {
         super("*** " + message + " ***");
@@ -17,6 +17,8 @@
 package gcf.settings;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * Lexer implementation class.
@@ -26,6 +28,15 @@ import java.io.File;
  */
 class GcfLexer extends Lexer {
     
+    /* largest mantissa a double represents exactly, 2^53 */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    
+    /* powers of ten a double represents exactly */
+    private static final double[] POWERS_OF_TEN = {
+        1e0,  1e1,  1e2,  1e3,  1e4,  1e5,  1e6,  1e7,  1e8,  1e9,  1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    
     /* flag when token is a global key */
     private boolean parsingGlobalKeys = true;
     
@@ -44,22 +55,48 @@ class GcfLexer extends Lexer {
     /**
      * Create a Lexer to tokenize the gcf file format.
      * @param file the file whose content shall be tokenizied
+     * @param symbols table interning the identifiers
+     */
+    GcfLexer(final File file, final SymbolTable symbols) {
+        super(file, symbols);
+    }
+    
+    /**
+     * Create a Lexer to tokenize a range of gcf content already in memory.
+     * The range must start outside of any group, i.e. at a group header 
+     * or at the global keys.
+     * @param input the input bytes
+     * @param from offset of the first byte to be read
+     * @param to offset after the last byte to be read
+     * @param lineNumber the line number at the first byte
+     * @param symbols table interning the identifiers
+     */
+    GcfLexer(final ByteBuffer input, final int from, final int to, final int lineNumber, final SymbolTable symbols) {
+        super(input, from, to, lineNumber, symbols);
+    }
+    
+    /**
+     * Create a Lexer to tokenize gcf content streamed from a channel.
+     * @param channel the channel whose content shall be tokenizied
+     * @param symbols table interning the identifiers
      */
-    GcfLexer(final File file) {
-        super(file);
+    GcfLexer(final ReadableByteChannel channel, final SymbolTable symbols) {
+        super(channel, symbols);
     }
 
     /**
-     * Gets the next token from the stream of characters.
+     * Reads the next token from the stream of characters.
      * Comments and spaces are ignored.<br>
      * The boolean flags are intended to help the lexer
      * recognize with tokentype it is handling
      * at a given moment. For example a groupname and a key
-     * are both simply text but have different tokentypes.
-     * @return the next token
+     * are both simply text but have different tokentypes.<br>
+     * The token only records the offsets of its text, no text is 
+     * built while scanning.
+     * @param token the token slot to be filled
      */
     @Override
-    Token nextToken() {
+    void nextToken(final Token token) {
         while(c != EOF) {
             switch(c) {
                 case ' ':
@@ -72,56 +109,85 @@ class GcfLexer extends Lexer {
                     comment(); // skip all characters until end of line (\n)
                     continue;
                 case '[': 
-                    consume(); 
+                    symbol(token, TokenType.GROUP_LBRACE);
                     parsingGlobalKeys = false; // global keys must come before any group
                     parsingGroupName = true;
                     parsingKey = false;
                     parsingValue = false;
-                    return new Token(TokenType.GROUP_LBRACE, "[", lineNumber);
+                    return;
                 case ']': 
-                    consume(); 
+                    symbol(token, TokenType.GROUP_RBRACE);
                     parsingGroupName = false;
                     parsingKey = true;
                     parsingValue = false;
-                    return new Token(TokenType.GROUP_RBRACE, "]", lineNumber);
+                    return;
                 case '/':
-                    consume();
-                    return new Token(TokenType.GROUP_FSLASH, "/", lineNumber);
+                    symbol(token, TokenType.GROUP_FSLASH);
+                    return;
                 case '=':
-                    consume();
+                    symbol(token, TokenType.EQUAL_SIGN);
                     parsingKey = false;
                     parsingValue = true;
-                    return new Token(TokenType.EQUAL_SIGN, "=", lineNumber);
+                    return;
                 case '$':
-                    consume();
-                    return new Token(TokenType.GLOBAR_VAR_SYMBOL, "$", lineNumber);
+                    symbol(token, TokenType.GLOBAR_VAR_SYMBOL);
+                    return;
                 case '{':
-                    consume();
+                    symbol(token, TokenType.GLOBAL_VAR_LBRACE);
                     parsingGlobalVar = true;
-                    return new Token(TokenType.GLOBAL_VAR_LBRACE, "{", lineNumber);
+                    return;
                 case '}':
-                    consume();
+                    symbol(token, TokenType.GLOBAL_VAR_RBRACE);
                     parsingKey = true;
                     parsingValue = false;
                     parsingGlobalVar = false;
-                    return new Token(TokenType.GLOBAL_VAR_RBRACE, "}", lineNumber);
+                    return;
                 default:
                     // Check if it is a letter, start of string or start of number
                     if (Character.isLetter(c) || c =='"' || isNumber(c) || c == '-' || c == '+') {
-                        if (parsingGroupName)  return new Token(TokenType.GROUP_NAME,groupnameText(), lineNumber);
-                        else if (parsingKey)   return new Token(TokenType.KEY, keyText(), lineNumber);
-                        else if (parsingGlobalVar) return new Token(TokenType.GLOBAL_VAR_NAME, keyText(), lineNumber);
+                        final long start = position();
+                        if (parsingGroupName) {
+                            groupnameText();
+                            token.set(TokenType.GROUP_NAME, start, position(), lineNumber);
+                            return;
+                        }
+                        else if (parsingKey) {
+                            keyText();
+                            token.set(TokenType.KEY, start, position(), lineNumber);
+                            return;
+                        }
+                        else if (parsingGlobalVar) {
+                            keyText();
+                            token.set(TokenType.GLOBAL_VAR_NAME, start, position(), lineNumber);
+                            return;
+                        }
                         else if (parsingValue) {
                             parsingKey = true;
                             parsingValue = false;
-                            return value(c);
+                            value(token);
+                            return;
+                        }
+                        else if (parsingGlobalKeys) {
+                            keyText();
+                            token.set(TokenType.KEY, start, position(), lineNumber);
+                            return;
                         }
-                        else if (parsingGlobalKeys) return new Token(TokenType.KEY, keyText(), lineNumber);
                     }
                     throw new GcfException("invalid character while parsing: \'"+c+"\' at line "+lineNumber);
             }
         }
-        return new Token(TokenType.EOF, "EOF", lineNumber);
+        token.set(TokenType.EOF, position(), position(), lineNumber);
+    }
+    
+    /**
+     * Consumes a single character symbol and fills the token slot with it.
+     * @param token the token slot to be filled
+     * @param type the type of the symbol
+     */
+    private void symbol(final Token token, final TokenType type) {
+        final long start = position();
+        consume();
+        token.set(type, start, position(), lineNumber);
     }
     
     /**
@@ -140,43 +206,35 @@ class GcfLexer extends Lexer {
      * the end of the line.
      */
     private void comment() {
-        while(c != '\n') {
+        while(c != '\n' && c != EOF) {
             consume();
         }
     }
     
     /**
-     * Constructs the text for name of a group.
+     * Consumes the text for name of a group.
      * This method only gets used when the appropriate groupname flag 
      * has been set to true.
-     * @return the groupname text
      */
-    private String groupnameText() {
-        final StringBuilder sb = new StringBuilder();
+    private void groupnameText() {
         do {
-            sb.append(c);
             consume();
         } while(Character.isLetter(c) || isNumber(c) || c=='_' || c=='-' || c=='.');
-        return sb.toString();
     }
     
     /**
-     * Constructs the text for a key.
+     * Consumes the text for a key.
      * This method only gets used when the appropriate key flag
      * is set to true.
-     * @return the key text
      */
-    private String keyText() {
+    private void keyText() {
         if (Character.isLetter(c) == false) {
             throw new GcfException("key must start with a letter, found \'"+c+"\' at line "+lineNumber);
         }
         
-        final StringBuilder sb = new StringBuilder();
         do {
-            sb.append(c);
             consume();
         } while(Character.isLetter(c) || isNumber(c) || c=='_' || c=='-' || c=='.');
-        return sb.toString();
     }
     
     /**
@@ -189,92 +247,139 @@ class GcfLexer extends Lexer {
     }
     
     /**
-     * Gets the token for a key value.
+     * Reads a key value into the token slot.
      * The value can a number, a boolean or a string.
      * For each one of these possibilities, there is 
-     * a separate method to parse the respective text.
-     * @param ch current char in the input stream
-     * @return the token representing the value.
+     * a separate method to consume the respective text,
+     * which also classifies the literal, so that the token 
+     * type tells how the value has to be converted.
+     * @param token the token slot to be filled
      */
-    private Token value(final char ch) {
-        String valueStr = "";
-        if (isNumber(ch) || ch=='-' || ch=='+') {
-            valueStr = numberValue(ch);
+    private void value(final Token token) {
+        if (isNumber(c) || c=='-' || c=='+') {
+            numberValue(token);
         }
         else if (c == '\"') {
-            valueStr = stringValue(ch);
+            stringValue(token);
         }
         else {
-            valueStr = booleanValue();
+            booleanValue(token);
         }
-        return new Token(TokenType.VALUE,valueStr,lineNumber);
     }
     
     /**
-     * Parses the text for a numeric value.
+     * Reads a numeric value.
      * Number can be an integer or a floating point, i.e.
      * containing a dot.
-     * @param ch current char in the input stream
-     * @return text of the numeric value
+     * An integer is an INT if it fits into an int, a LONG if 
+     * it fits into a long and a DOUBLE otherwise.
+     * The number is converted while it is read, the token 
+     * carries the value as its bits.
+     * @param token the token slot to be filled
      */
-    private String numberValue(final char ch) {
-        final StringBuilder sb = new StringBuilder();
-        sb.append(ch);
-        consume();
+    private void numberValue(final Token token) {
+        final long start = position();
+        final int line = lineNumber;
+        final boolean negative = (c == '-');
+        if (c=='-' || c=='+') consume();
+        
+        // accumulate negatively, since the negative range is the larger one
+        final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long acc = 0;
+        boolean overflow = false;
+        // all digits as the mantissa of a double, exact up to 2^53
+        long mantissa = 0;
+        boolean exact = true;
+        int fractionDigits = 0;
+        int digits = 0;
+        int dots = 0;
         while(isNumber(c) || c=='.') {
-            sb.append(c);
+            if (c == '.') {
+                dots++;
+            }
+            else {
+                final int digit = c - '0';
+                if (acc < limit / 10 || acc * 10 < limit + digit) overflow = true;
+                else acc = acc * 10 - digit;
+                if (mantissa > (MAX_EXACT_MANTISSA - digit) / 10) exact = false;
+                else mantissa = mantissa * 10 + digit;
+                if (dots > 0) fractionDigits++;
+                digits++;
+            }
             consume();
         }
-        return sb.toString();
+        
+        if (digits == 0 || dots > 1) {
+            throw new GcfException("mal formed number at line "+line);
+        }
+        
+        final long end = position();
+        if (dots > 0 || overflow) {
+            final double value;
+            if (exact && fractionDigits < POWERS_OF_TEN.length) {
+                // both operands are exact, so the division is correctly rounded
+                final double abs = mantissa / POWERS_OF_TEN[fractionDigits];
+                value = negative ? -abs : abs;
+            }
+            else {
+                value = Double.parseDouble(text(start, end));
+            }
+            token.set(TokenType.DOUBLE, start, end, lineNumber, Double.doubleToRawLongBits(value));
+        }
+        else {
+            final TokenType type = acc >= (negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE) 
+                                 ? TokenType.INT : TokenType.LONG;
+            token.set(type, start, end, lineNumber, negative ? acc : -acc);
+        }
     }
     
     /**
-     * Parses the text of a string value.
+     * Reads a string value.
      * A string must be enclosed in double quotes.
      * Otherwise an exception is thrown.
-     * The string text is parsed containing the double quotes
-     * because those are important later when parsing the file, i.e.
-     * to distinguish which class represents the value.
-     * @param ch current char in the input stream
-     * @return text of the string value with double quotes
+     * The token covers the text inbetween the double quotes.
+     * @param token the token slot to be filled
      */
-    private String stringValue(final char ch) {
-        final StringBuilder sb = new StringBuilder();
-        sb.append(ch);
-        
+    private void stringValue(final Token token) {
         consume();
+        final long start = position();
         while(c != '\"') {
-            sb.append(c);
-            
-            if (c == '\n') {
+            if (c == '\n' || c == EOF) {
                 throw new GcfException("string not correctly closed at line "+lineNumber);
             }
             
             consume();
         }
-        sb.append(c);
+        final long end = position();
         consume();
-
-        return sb.toString();
+        token.set(TokenType.STRING, start, end, lineNumber);
     }
     
     /**
-     * Parses the text for a boolean value.
+     * Reads a boolean value.
      * A boolean value can only be "true" or "false".
      * In this application we also accept "True", "TRUE" and 
-     * "False", "FALSE".
-     * Here the value is parsed without checking the correct 
-     * content of the text value. It just accepts letters.
-     * The check wether the value is correct or not occurs 
-     * during the parsing of the file.
-     * @return text of a boolean value
+     * "False", "FALSE", i.e. the case is ignored.
+     * Any other word is an error.
+     * @param token the token slot to be filled
      */
-    private String booleanValue() {
-        final StringBuilder sb = new StringBuilder();
+    private void booleanValue(final Token token) {
+        final long start = position();
+        final int line = lineNumber;
+        int length = 0;
+        boolean matchesTrue = true;
+        boolean matchesFalse = true;
         do {
-            sb.append(c);
+            final char lower = Character.toLowerCase(c);
+            matchesTrue  = matchesTrue  && length < 4 && lower == "true".charAt(length);
+            matchesFalse = matchesFalse && length < 5 && lower == "false".charAt(length);
+            length++;
             consume();
         } while(Character.isLetter(c));
-        return sb.toString();
+        
+        if (!(matchesTrue && length == 4) && !(matchesFalse && length == 5)) {
+            throw new GcfException("mal formed value, expecting number, string or boolean at line "+line);
+        }
+        token.set(TokenType.BOOLEAN, start, position(), lineNumber, matchesTrue ? 1 : 0);
     }
 }
@@ -63,7 +63,7 @@ class GcfParser extends Parser {
         while(!lookahead.getType().equals(TokenType.EOF)) {
             if (lookahead.getType().equals(TokenType.KEY)) {
                 final KeyValue kv = new KeyValue("/", this.dataBuffer, this);
-                this.dataBuffer.addGlobalKey(kv.getKey(), kv.getValue());
+                this.dataBuffer.addGlobalKey(kv);
             }
             else if (lookahead.getType().equals(TokenType.GROUP_LBRACE) && 
                      !LT(2).getType().equals(TokenType.GROUP_FSLASH)) {
@@ -75,6 +75,14 @@ class GcfParser extends Parser {
         }
     }
     
+    /**
+     * Checks if there is nothing left to parse.
+     * @return true if the next token is the end of the input
+     */
+    boolean atEnd() {
+        return lookahead.getType().equals(TokenType.EOF);
+    }
+    
     /**
      * Creates a top level group and adds it to the main data buffer.
      * The parsing of the group is delegated to the group itself.
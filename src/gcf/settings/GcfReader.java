@@ -0,0 +1,354 @@
+/*
+  Settings 
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Pull reader for the gcf file format.<br>
+ * Instead of building all groups in memory, as the <code>Settings</code>
+ * class does, this reader reports the content of a gcf file as a 
+ * sequence of events, one at a time and on request of the client:
+ * <blockquote>
+ * <pre>
+ *     final GcfReader reader = new GcfReader(someFile);
+ *     while(reader.next() != GcfReader.Event.END_DOCUMENT) {
+ *         if (reader.getEvent() == GcfReader.Event.KEY_VALUE) {
+ *             System.out.println(reader.getPath() + reader.getKey() + " = " + reader.getValue());
+ *         }
+ *     }
+ * </pre>
+ * </blockquote>
+ * Only the global keys, which can be referenced by later values, 
+ * and the names of the currently open groups are kept in memory, 
+ * so that huge files can be scanned, filtered or converted 
+ * with constant memory.
+ */
+public final class GcfReader {
+    
+    /**
+     * The events reported by the reader.
+     */
+    public enum Event {
+        
+        /** A group header, the group name is available */
+        START_GROUP,
+        
+        /** A key/value, the key and the value are available */
+        KEY_VALUE,
+        
+        /** A group footer, the group name is available */
+        END_GROUP,
+        
+        /** The end of the input, no more events follow */
+        END_DOCUMENT
+    }
+    
+    /* The parser delivering the tokens */
+    private final Parser parser;
+    
+    /* The global keys and their values */
+    private final Map<String,Value> globals = new HashMap<>();
+    
+    /* The names of the currently open groups, innermost first */
+    private final Deque<String> groups = new ArrayDeque<>();
+    
+    /* The current event, null before the first call to next */
+    private Event event;
+    
+    /* The key of the current key/value */
+    private String key;
+    
+    /* The value of the current key/value */
+    private Value value;
+
+    /**
+     * Creates a reader for a gcf file.
+     * @param absFilePath the absolute path of the file
+     */
+    public GcfReader(final String absFilePath) {
+        Objects.requireNonNull(absFilePath, "file object is null");
+        this.parser = new Parser(new GcfLexer(new File(absFilePath), new SymbolTable()), 2);
+    }
+    
+    /**
+     * Creates a reader for gcf content from a byte channel.
+     * The content is expected to be UTF-8 encoded.
+     * The channel is read to its end but not closed.
+     * @param channel the channel to read from
+     */
+    public GcfReader(final ReadableByteChannel channel) {
+        Objects.requireNonNull(channel, "channel is null");
+        this.parser = new Parser(new GcfLexer(channel, new SymbolTable()), 2);
+    }
+    
+    /**
+     * Creates a reader for gcf content from an input stream.
+     * The content is expected to be UTF-8 encoded.
+     * The stream is read to its end but not closed.
+     * @param in the stream to read from
+     */
+    public GcfReader(final InputStream in) {
+        this(Channels.newChannel(Objects.requireNonNull(in, "input stream is null")));
+    }
+    
+    /**
+     * Creates a reader for gcf content from a character reader.
+     * The reader is read to its end but not closed.
+     * @param reader the reader to read from
+     */
+    public GcfReader(final Reader reader) {
+        this(new ReaderChannel(Objects.requireNonNull(reader, "reader is null")));
+    }
+    
+    /**
+     * Moves to the next event.
+     * @return the next event
+     * @throws GcfException if the input is not valid or if the 
+     *         end of the document has already been reached
+     */
+    public Event next() throws GcfException {
+        if (this.event == Event.END_DOCUMENT) {
+            throw new GcfException("no more events after end of document");
+        }
+        if (this.event == Event.END_GROUP) {
+            this.groups.pop();
+        }
+        this.key = null;
+        this.value = null;
+        
+        final TokenType type = this.parser.lookahead.getType();
+        if (type.equals(TokenType.KEY)) {
+            keyValue();
+            this.event = Event.KEY_VALUE;
+        }
+        else if (type.equals(TokenType.GROUP_LBRACE) && 
+                 !this.parser.LT(2).getType().equals(TokenType.GROUP_FSLASH)) {
+            groupHead();
+            this.event = Event.START_GROUP;
+        }
+        else if (type.equals(TokenType.GROUP_LBRACE) && !this.groups.isEmpty()) {
+            groupFoot();
+            this.event = Event.END_GROUP;
+        }
+        else if (type.equals(TokenType.EOF) && this.groups.isEmpty()) {
+            this.event = Event.END_DOCUMENT;
+        }
+        else if (type.equals(TokenType.EOF)) {
+            throw new GcfException("group \""+getPath()+"\" not correctly closed at line "+this.parser.lookahead.getLineNumber());
+        }
+        else {
+            throw new GcfException("expecting group or keyvalue, found " + this.parser.lookahead + " at line "+this.parser.lookahead.getLineNumber());
+        }
+        return this.event;
+    }
+    
+    /**
+     * Gets the current event.
+     * @return the current event, null before the first call to <code>next</code>
+     */
+    public Event getEvent() {
+        return this.event;
+    }
+    
+    /**
+     * Gets the nesting depth of the current event.
+     * Global keys have depth 0, keys of a top level group and 
+     * the top level group itself have depth 1, etc.
+     * @return the depth
+     */
+    public int getDepth() {
+        return this.groups.size();
+    }
+    
+    /**
+     * Gets the name of the current group.
+     * That is the group starting or ending, or the group 
+     * containing the current key/value.
+     * @return the group name, "/" for global keys
+     */
+    public String getGroupName() {
+        return this.groups.isEmpty() ? "/" : this.groups.peek();
+    }
+    
+    /**
+     * Gets the absolute path of the current group.
+     * The path is built on each call.
+     * @return the group path, e.g. "/Constants/Sub/"
+     */
+    public String getPath() {
+        final StringBuilder sb = new StringBuilder("/");
+        final Iterator<String> it = this.groups.descendingIterator();
+        while(it.hasNext()) {
+            sb.append(it.next()).append('/');
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Gets the key of the current key/value.
+     * @return the key
+     * @throws GcfException if the current event is not a key/value
+     */
+    public String getKey() throws GcfException {
+        checkKeyValue();
+        return this.key;
+    }
+    
+    /**
+     * Gets the value of the current key/value.
+     * @return the value as an object
+     * @throws GcfException if the current event is not a key/value
+     */
+    public Object getValue() throws GcfException {
+        checkKeyValue();
+        return this.value.toObject();
+    }
+    
+    /**
+     * Gets the value of the current key/value as a string.
+     * @return the value as a string
+     * @throws GcfException if the current event is not a key/value
+     */
+    public String getString() throws GcfException {
+        checkKeyValue();
+        return this.value.toString();
+    }
+    
+    /**
+     * Gets the value of the current key/value as an int.
+     * @return the value as an int
+     * @throws GcfException if the current event is not a key/value 
+     *         or the value cannot be represented as an int
+     */
+    public int getInt() throws GcfException {
+        checkKeyValue();
+        return this.value.asInt();
+    }
+    
+    /**
+     * Gets the value of the current key/value as a long.
+     * @return the value as a long
+     * @throws GcfException if the current event is not a key/value 
+     *         or the value cannot be represented as a long
+     */
+    public long getLong() throws GcfException {
+        checkKeyValue();
+        return this.value.asLong();
+    }
+    
+    /**
+     * Gets the value of the current key/value as a double.
+     * @return the value as a double
+     * @throws GcfException if the current event is not a key/value 
+     *         or the value is not a number
+     */
+    public double getDouble() throws GcfException {
+        checkKeyValue();
+        return this.value.asDouble();
+    }
+    
+    /**
+     * Gets the value of the current key/value as a boolean.
+     * @return the value as a boolean
+     * @throws GcfException if the current event is not a key/value 
+     *         or the value is not a boolean
+     */
+    public boolean getBoolean() throws GcfException {
+        checkKeyValue();
+        if (this.value.getType() == ValueType.BOOLEAN || this.value.getType() == ValueType.STRING) {
+            try {
+                return this.value.asBoolean();
+            } catch(GcfException ex) {
+                // reported below
+            }
+        }
+        
+        throw new GcfException("value for key \""+this.key+"\" is not a boolean");
+    }
+    
+    /**
+     * Checks that the current event is a key/value.
+     */
+    private void checkKeyValue() throws GcfException {
+        if (this.event != Event.KEY_VALUE) {
+            throw new GcfException("current event "+this.event+" is not a key/value");
+        }
+    }
+    
+    /**
+     * Parses a key/value, global keys are remembered 
+     * so that later values can reference them.
+     */
+    private void keyValue() {
+        this.key = this.parser.matchText(TokenType.KEY);
+        this.parser.match(TokenType.EQUAL_SIGN);
+        
+        if (this.parser.lookahead.getType().equals(TokenType.GLOBAR_VAR_SYMBOL)) {
+            this.parser.match(TokenType.GLOBAR_VAR_SYMBOL);
+            this.parser.match(TokenType.GLOBAL_VAR_LBRACE);
+            final String globalKey = this.parser.matchText(TokenType.GLOBAL_VAR_NAME);
+            this.value = this.globals.get(globalKey);
+            if (this.value == null) {
+                throw new GcfException("no global key \""+globalKey+"\"");
+            }
+            this.parser.match(TokenType.GLOBAL_VAR_RBRACE);
+        }
+        else {
+            this.value = KeyValue.matchValue(this.parser);
+        }
+        
+        if (this.groups.isEmpty()) {
+            this.globals.putIfAbsent(this.key, this.value);
+        }
+    }
+    
+    /**
+     * Parses a group header.
+     */
+    private void groupHead() {
+        this.parser.match(TokenType.GROUP_LBRACE);
+        final String name = this.parser.matchText(TokenType.GROUP_NAME);
+        this.parser.match(TokenType.GROUP_RBRACE);
+        this.groups.push(name);
+    }
+    
+    /**
+     * Parses a group footer and checks that it closes the current group.
+     * The group is removed from the open groups on the next event.
+     */
+    private void groupFoot() {
+        this.parser.match(TokenType.GROUP_LBRACE);
+        this.parser.match(TokenType.GROUP_FSLASH);
+        final boolean closed = this.parser.lookahead.textEquals(this.groups.peek());
+        this.parser.match(TokenType.GROUP_NAME);
+        if (closed == false) {
+            throw new GcfException("group \""+getPath()+"\" not correctly closed at line "+this.parser.lookahead.getLineNumber());
+        }
+        this.parser.match(TokenType.GROUP_RBRACE);
+    }
+}
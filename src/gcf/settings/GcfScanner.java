@@ -0,0 +1,190 @@
+/*
+  Settings 
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Fast pre-scan of the group structure of a gcf input.
+ * The scanner only looks for group headers and footers, skipping 
+ * comments and strings, and records the byte range and nesting of 
+ * every group. Keys and values are not looked at, they are left 
+ * to the parser.<br>
+ * Headers and footers are checked to be correctly nested, so that 
+ * the ranges can be parsed independently afterwards.
+ */
+final class GcfScanner {
+    
+    /* The input bytes */
+    private final ByteBuffer input;
+    
+    /* Table interning the group names */
+    private final SymbolTable symbols;
+    
+    /* Current byte offset */
+    private int p;
+    
+    /* Current line */
+    private int lineNumber = 1;
+    
+    /* The top level groups, in document order */
+    private final List<GroupRange> topGroups = new ArrayList<>();
+
+    /**
+     * Creates a scanner.
+     * @param input the input bytes, from position 0 to the limit
+     * @param symbols table interning the group names
+     */
+    GcfScanner(final ByteBuffer input, final SymbolTable symbols) {
+        this.input = input;
+        this.symbols = symbols;
+    }
+    
+    /**
+     * Scans the whole input.
+     * @return the ranges of the top level groups in document order
+     * @throws GcfException if the groups are not correctly nested
+     */
+    List<GroupRange> scan() throws GcfException {
+        final Deque<GroupRange> open = new ArrayDeque<>();
+        final int limit = input.limit();
+        p = 0;
+        
+        while(p < limit) {
+            switch(input.get(p)) {
+                case '\n':
+                    lineNumber++;
+                    p++;
+                    break;
+                case '#':
+                    while(p < limit && input.get(p) != '\n') p++;
+                    break;
+                case '"':
+                    p++;
+                    while(p < limit && input.get(p) != '"' && input.get(p) != '\n') p++;
+                    if (p < limit && input.get(p) == '"') p++;
+                    break;
+                case '[':
+                    bracket(topGroups, open);
+                    break;
+                default:
+                    p++;
+            }
+        }
+        
+        if (!open.isEmpty()) {
+            throw new GcfException("group \""+open.peek().name+"\" not correctly closed at line "+lineNumber);
+        }
+        return topGroups;
+    }
+    
+    /**
+     * Gets a lexer over the bytes in front of a top level group, i.e. 
+     * after the previous top level group. These bytes hold the global 
+     * keys, which may be declared between the groups as well.
+     * Only valid after the input has been scanned.
+     * @param index the index of the top level group, the number of 
+     *        top level groups for the bytes after the last one
+     * @return the lexer
+     */
+    Lexer outside(final int index) {
+        final GroupRange previous = (index == 0) ? null : topGroups.get(index - 1);
+        final int start = (previous == null) ? 0 : previous.end;
+        final int end = (index == topGroups.size()) ? input.limit() : topGroups.get(index).start;
+        final int line = (previous == null) ? 1 : previous.endLine;
+        return new GcfLexer(input, start, end, line, symbols);
+    }
+    
+    /**
+     * Scans a group header or footer.
+     * @param topGroups the top level groups found so far
+     * @param open the groups whose footer has not been found yet
+     */
+    private void bracket(final List<GroupRange> topGroups, final Deque<GroupRange> open) {
+        final int start = p;
+        final int line = lineNumber;
+        p++;
+        ws();
+        final boolean footer = (p < input.limit() && input.get(p) == '/');
+        if (footer) {
+            p++;
+            ws();
+        }
+        
+        final int nameStart = p;
+        while(p < input.limit() && isNameByte(input.get(p))) p++;
+        if (p == nameStart) {
+            throw new GcfException("expecting group name at line "+lineNumber);
+        }
+        final String name = symbols.intern(input, nameStart, p - nameStart);
+        
+        ws();
+        if (p >= input.limit() || input.get(p) != ']') {
+            throw new GcfException("expecting "+TokenType.GROUP_RBRACE+" at line "+lineNumber);
+        }
+        p++;
+        
+        if (footer) {
+            final GroupRange group = open.poll();
+            // group names are interned, so they compare by identity
+            if (group == null || group.name != name) {
+                throw new GcfException("group \""+name+"\" not correctly closed at line "+line);
+            }
+            group.footerStart = start;
+            group.end = p;
+            group.endLine = lineNumber;
+        }
+        else {
+            final GroupRange group = new GroupRange(name, start, line);
+            group.headerEnd = p;
+            group.headerEndLine = lineNumber;
+            if (open.isEmpty()) {
+                topGroups.add(group);
+            }
+            else {
+                open.peek().children.add(group);
+            }
+            open.push(group);
+        }
+    }
+    
+    /**
+     * Skips whitespaces.
+     */
+    private void ws() {
+        while(p < input.limit()) {
+            final byte b = input.get(p);
+            if (b == '\n') lineNumber++;
+            else if (b != ' ' && b != '\t' && b != '\r') return;
+            p++;
+        }
+    }
+    
+    /**
+     * Checks if a byte can be part of a group name.
+     * Bytes of multi-byte characters are accepted, the lexer 
+     * checks those characters when the group is parsed.
+     */
+    private static boolean isNameByte(final byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || b == '_' || b == '-' || b == '.' || b < 0;
+    }
+}
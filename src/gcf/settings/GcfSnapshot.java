@@ -0,0 +1,308 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the parsed groups of a gcf file in a binary
+ * format, so that the file does not have to be parsed again as
+ * long as it is not changed.
+ * The snapshot is stored next to the gcf file, with the additional
+ * extension <code>.snapshot</code>, and records the size, the
+ * modification time and a checksum of the text it was created from.
+ * It is only used if all three still match the gcf file.<br>
+ * The format, all numbers big endian:
+ * <pre>
+ *     header   magic "GCFS", version, source size, source mtime, source CRC32
+ *     strings  count, then per string its UTF-8 length and bytes
+ *     groups   count, then per group in document order, the root first:
+ *              parent index (-1 for the root), name, layout, key count,
+ *              and per key: key, type, then the bits for numbers and
+ *              booleans or the string for strings
+ *     layout   offset, header length, footer offset, length, source hash,
+ *              and whether global keys are referenced, as in the group
+ * </pre>
+ * Names, keys and string values are indexes into the string table.
+ * With the layout the groups are located in the gcf text just like
+ * after parsing it, so that unchanged groups are copied when saving.
+ */
+final class GcfSnapshot {
+
+    /* Marks a snapshot file, "GCFS" */
+    private static final int MAGIC = 0x47434653;
+
+    /* The version of the format */
+    private static final int VERSION = 2;
+
+    /* The additional extension of snapshot files */
+    private static final String EXTENSION = ".snapshot";
+
+    private GcfSnapshot() {
+    }
+
+    /**
+     * Gets the snapshot file of a gcf file.
+     * @param source the gcf file
+     * @return the snapshot file
+     */
+    static File fileFor(final File source) {
+        return new File(source.getPath() + EXTENSION);
+    }
+
+    /**
+     * Computes the checksum of a gcf text.
+     * @param input the text, from position 0 to the limit
+     * @return the checksum
+     */
+    static long checksum(final ByteBuffer input) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer all = input.duplicate();
+        all.position(0);
+        crc.update(all);
+        return crc.getValue();
+    }
+
+    /**
+     * Reads a snapshot into a new data buffer.
+     * @param snapshot the snapshot file
+     * @param size the size of the gcf text
+     * @param modified the modification time of the gcf file
+     * @param checksum the checksum of the gcf text
+     * @param symbols table interning keys, group names and paths
+     * @return the filled buffer, null if there is no snapshot,
+     *         or it does not match the gcf text or is damaged
+     */
+    static Buffer read(final File snapshot, final long size, final long modified,
+                       final long checksum, final SymbolTable symbols) {
+        if (!snapshot.isFile()) {
+            return null;
+        }
+
+        ByteBuffer in = null;
+        try {
+            in = Lexer.map(snapshot);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION
+                    || in.getLong() != size || in.getLong() != modified || in.getLong() != checksum) {
+                return null;
+            }
+
+            final String[] strings = new String[in.getInt()];
+            final byte[] bytes = new byte[256];
+            for (int i=0; i<strings.length; i++) {
+                final int length = in.getInt();
+                final byte[] utf8 = (length <= bytes.length) ? bytes : new byte[length];
+                in.get(utf8, 0, length);
+                strings[i] = new String(utf8, 0, length, StandardCharsets.UTF_8);
+            }
+
+            // names and keys are interned once per string, not once per use
+            final String[] interned = new String[strings.length];
+            final Buffer buffer = new Buffer(symbols);
+            final ValueType[] types = ValueType.values();
+            final Group[] groups = new Group[in.getInt()];
+            for (int g=0; g<groups.length; g++) {
+                final int parent = in.getInt();
+                if ((g == 0) ? parent != -1 : (parent < 0 || parent >= g)) {
+                    throw new GcfException("parent "+parent+" of group "+g+" out of range");
+                }
+                final String name = symbol(in.getInt(), strings, interned, symbols);
+                final Group group;
+                if (parent < 0) {
+                    group = buffer.getGroup("/");
+                }
+                else {
+                    group = new Group(groups[parent].getPath(), name, buffer, buffer.groupChanger());
+                    if (parent == 0) {
+                        buffer.addTopGroup(group);
+                    }
+                    else {
+                        buffer.addGroup(group);
+                    }
+                }
+                groups[g] = group;
+
+                final int offset = in.getInt();
+                final int headerLength = in.getInt();
+                final int footerOffset = in.getInt();
+                final int length = in.getInt();
+                group.locate(offset, headerLength, footerOffset, length);
+                final long hash = in.getLong();
+                group.remember(hash, in.get() != 0);
+
+                final int keyCount = in.getInt();
+                for (int k=0; k<keyCount; k++) {
+                    final String key = symbol(in.getInt(), strings, interned, symbols);
+                    final ValueType type = types[in.get()];
+                    group.loadValue(key, (type == ValueType.STRING)
+                                         ? Value.of(strings[in.getInt()])
+                                         : Value.of(type, in.getLong(), null));
+                }
+            }
+            return buffer;
+        } catch(GcfException | BufferUnderflowException | IndexOutOfBoundsException 
+                | NegativeArraySizeException ex) {
+            GcfWarning.printWarning("ignoring damaged snapshot "+snapshot.getAbsolutePath());
+            return null;
+        } finally {
+            // everything read was copied, and the snapshot may be replaced next
+            if (in != null) {
+                Lexer.unmap(in);
+            }
+        }
+    }
+
+    /**
+     * Gets an interned string of the string table.
+     */
+    private static String symbol(final int i, final String[] strings, final String[] interned,
+                                 final SymbolTable symbols) {
+        if (interned[i] == null) {
+            interned[i] = symbols.intern(strings[i]);
+        }
+        return interned[i];
+    }
+
+    /**
+     * Writes the groups of a data buffer to a snapshot.
+     * The snapshot is written to a temporary file first, which then
+     * replaces the snapshot, so that a snapshot is always complete.
+     * Failures are reported as warnings only, since the snapshot is
+     * only an optimization.
+     * @param buffer the data buffer
+     * @param snapshot the snapshot file
+     * @param size the size of the gcf text
+     * @param modified the modification time of the gcf file
+     * @param checksum the checksum of the gcf text
+     */
+    static void write(final Buffer buffer, final File snapshot, final long size,
+                      final long modified, final long checksum) {
+        final List<Group> groups = new ArrayList<>();
+        final List<Integer> parents = new ArrayList<>();
+        collect(buffer.getGroup("/"), -1, groups, parents);
+
+        final Map<String,Integer> index = new HashMap<>();
+        final List<String> strings = new ArrayList<>();
+        final List<Map<String,Value>> values = new ArrayList<>(groups.size());
+        for (Group group : groups) {
+            index(group.getName(), index, strings);
+            final Map<String,Value> keys = group.values();
+            for (Map.Entry<String,Value> kv : keys.entrySet()) {
+                index(kv.getKey(), index, strings);
+                if (kv.getValue().getType() == ValueType.STRING) {
+                    index(kv.getValue().toString(), index, strings);
+                }
+            }
+            values.add(keys);
+        }
+
+        File temp = null;
+        try {
+            temp = File.createTempFile(snapshot.getName(), ".tmp", snapshot.getAbsoluteFile().getParentFile());
+            try (DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(size);
+                out.writeLong(modified);
+                out.writeLong(checksum);
+
+                out.writeInt(strings.size());
+                for (String string : strings) {
+                    final byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(utf8.length);
+                    out.write(utf8);
+                }
+
+                out.writeInt(groups.size());
+                for (int g=0; g<groups.size(); g++) {
+                    out.writeInt(parents.get(g));
+                    final Group group = groups.get(g);
+                    out.writeInt(index.get(group.getName()));
+                    out.writeInt(group.sourceOffset());
+                    out.writeInt(group.headerLength());
+                    out.writeInt(group.footerOffset());
+                    out.writeInt(group.sourceLength());
+                    out.writeLong(group.sourceHash());
+                    out.writeBoolean(group.usesGlobals());
+                    out.writeInt(values.get(g).size());
+                    for (Map.Entry<String,Value> kv : values.get(g).entrySet()) {
+                        final Value value = kv.getValue();
+                        out.writeInt(index.get(kv.getKey()));
+                        out.writeByte(value.getType().ordinal());
+                        if (value.getType() == ValueType.STRING) {
+                            out.writeInt(index.get(value.toString()));
+                        }
+                        else {
+                            out.writeLong(value.bits());
+                        }
+                    }
+                }
+            }
+            try {
+                Files.move(temp.toPath(), snapshot.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch(AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch(IOException ex) {
+            GcfWarning.printWarning("cannot write snapshot "+snapshot.getAbsolutePath()+": "+ex.getMessage());
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Lists a group and all groups below it in document order,
+     * together with the index of their parent.
+     */
+    private static void collect(final Group group, final int parent,
+                                final List<Group> groups, final List<Integer> parents) {
+        final int self = groups.size();
+        groups.add(group);
+        parents.add(parent);
+        for (Group child : group.children()) {
+            collect(child, self, groups, parents);
+        }
+    }
+
+    /**
+     * Adds a string to the string table, if it is not yet in it.
+     */
+    private static void index(final String string, final Map<String,Integer> index, final List<String> strings) {
+        if (!index.containsKey(string)) {
+            index.put(string, strings.size());
+            strings.add(string);
+        }
+    }
+}
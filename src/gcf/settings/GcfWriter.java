@@ -1,5 +1,5 @@
 /*
-  Settings 
+  Settings
   Copyright 2015 micama
 
    Licensed under the Apache License, Version 2.0 (the "License");
@@ -16,172 +16,1057 @@
 */
 package gcf.settings;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Writes the content of the data buffer in a formatted gcf file format.
- * All comments are lost since the are not saved in any form.
+ * Writes the content of the data buffer in a formatted gcf file format.<br>
+ * Only the groups changed since they were read from or last written 
+ * to the file are formatted anew, the bytes of the other groups are 
+ * copied from the source of the buffer, comments included. A group 
+ * whose keys did not change but one of its sub groups did is copied 
+ * in pieces: the bytes in front of, between and after its sub groups.
+ * The comments of the changed groups are lost, since they are not 
+ * saved in any form, unless the buffer keeps the layout of the source,
+ * see <code>Option.LOSSLESS</code>. Then the changed groups are copied
+ * in pieces as well, around the spans of their keys, and only the
+ * values changed, the keys added and the sub groups added are written
+ * anew, see <code>Span</code>. If a single value changed and is written
+ * with as many bytes as before, it is even written into the file itself,
+ * without touching the rest of it.<br>
+ * The text is collected in a char buffer, encoded into a byte buffer
+ * and written to a file channel, each buffer being reused for the
+ * whole file. The file is written under a temporary name next to the
+ * target and then renamed over it, so the target is either the old
+ * or the new file, even if the process dies while saving.
+ * The new file then becomes the source of the buffer.
  */
 class GcfWriter {
-    
+
+    /* The indentation of one level */
+    private static final String INDENT = "    ";
+
+    /* Size of the char and the byte buffer */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /* The unit a disk writes as a whole */
+    private static final int SECTOR_SIZE = 512;
+
     /** Reference to the data buffer */
     private final Buffer buffer;
-    
+
     /** Reference the file to be written */
     private final File file;
 
-    
+    /* Keeps the layout of changed groups, see Option.LOSSLESS */
+    private final boolean lossless;
+
+    /* The indentation per level, extended when a deeper level is written */
+    private String[] prefixes = {""};
+
+    /* The text not encoded yet */
+    private final char[] text = new char[BUFFER_SIZE];
+
+    /* The number of chars in the text */
+    private int length;
+
+    /* The text as a buffer for the encoder */
+    private final CharBuffer chars = CharBuffer.wrap(this.text);
+
+    /* The encoded text not written yet */
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /* Encodes the text as UTF-8, the encoding the lexer reads */
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    /* The channel to the temporary file, while writing */
+    private FileChannel channel;
+
+    /* The source of the buffer to copy unchanged groups from, null if all groups are formatted */
+    private ByteBuffer source;
+
+    /* The bytes of the source being copied, a view of the source */
+    private ByteBuffer segment;
+
+    /* The global keys, the values references to them stand for */
+    private Map<String,Value> globals;
+
+    /* The number of bytes of the text written so far, encoded or not */
+    private long position;
+
+    /* The locations of the written groups in the new file */
+    private final List<Location> locations = new ArrayList<>();
+
+
     /** Creates a SettingsFileWriter object
-     * 
+     *
      * @param outputFile File object with the file to be written
      */
     public GcfWriter(final File outputFile,final Buffer buffer) {
-        this.file   = outputFile;
-        this.buffer = buffer;
+        this.file     = outputFile;
+        this.buffer   = buffer;
+        this.lossless = buffer.lossless();
     }
 
     /**
      * Writes the formatted cfg file from the inputed group information.
+     * The file is written UTF-8 encoded, the same encoding the lexer reads.
      */
     public void writeFile() throws GcfException
     {
         final Group topGroup = this.buffer.getGroup("/");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(this.file,false))) {
-            writeGroup(writer, topGroup, 0);
+        final File target = this.file.getAbsoluteFile();
+        final File sourceFile = this.buffer.sourceFile();
+        final ByteBuffer from = this.buffer.source();
+        this.source = (from == null) ? null : from.duplicate();
+        this.segment = (from == null) ? null : from.duplicate();
+        if (this.source != null && topGroup.dirty()) {
+            // a copied reference to a changed global key would change the value
+            markGlobalUsers(topGroup);
+        }
+        this.globals = topGroup.values();
+        if (this.lossless && this.source != null && sourceFile != null
+                && target.equals(sourceFile.getAbsoluteFile()) && patchInPlace(topGroup, target)) {
+            return;
+        }
+
+        final File temp = new File(target.getParentFile(),
+                                   "." + target.getName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        boolean written = false;
+        try {
+            try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW, 
+                                                    StandardOpenOption.WRITE)) {
+                this.channel = out;
+                writeGroup(topGroup, 0, 0, 0);
+                encode(true);
+                writeBytes();
+                // on disk before the rename makes it visible
+                out.force(true);
+            } finally {
+                this.channel = null;
+            }
+            if (target.exists()) {
+                keepPermissions(target, temp);
+            }
+            try {
+                Files.move(temp.toPath(), target.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch(AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            written = true;
         } catch (IOException ex) {
+            temp.delete();
             throw new GcfException(
-                    "*** error ocurred while saving " + 
+                    "*** error ocurred while saving " +
                     this.file.getAbsolutePath() + " ***");
+        } finally {
+            // the dirty flags were cleared, so the old source must not be copied from any more
+            if (!written) {
+                this.buffer.detachSource();
+            }
+        }
+        relocate(target);
+    }
+
+    /**
+     * Makes the written file the source of the buffer, 
+     * with the groups located where they were written.
+     * @param target the written file
+     */
+    private void relocate(final File target) {
+        final long modified = target.lastModified();
+        try {
+            final ByteBuffer written = Lexer.map(target);
+            if (written.limit() == this.position) {
+                final Set<Group> groups = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (Location location : this.locations) {
+                    groups.add(location.group);
+                }
+                for (Location location : this.locations) {
+                    location.group.locate(location.offset, location.headerLength, 
+                                          location.footerOffset, location.length);
+                    if (location.spans != null) {
+                        location.group.locateKeys(location.spans, groups);
+                    }
+                }
+                this.buffer.attachSource(written, target, modified);
+                return;
+            }
+        } catch(GcfException ex) {
+            // not copied from, the next save formats all groups
+        }
+        this.buffer.detachSource();
+    }
+
+    /**
+     * Gives the new file the permissions of the file it replaces.
+     * @param target the file replaced
+     * @param temp the new file
+     * @throws IOException
+     */
+    private static void keepPermissions(final File target, final File temp) throws IOException {
+        try {
+            Files.setPosixFilePermissions(temp.toPath(), Files.getPosixFilePermissions(target.toPath()));
+        } catch(UnsupportedOperationException ex) {
+            // no POSIX file system, the permissions are inherited from the directory
+        }
+    }
+
+    /**
+     * Marks the groups referencing global keys dirty, once a global
+     * key may have changed, so that they are not copied with the
+     * references, which would stand for the changed values.
+     * @param group the group whose sub groups are marked
+     */
+    private static void markGlobalUsers(final Group group) {
+        for (Group child : group.children()) {
+            if (child.usesGlobals()) {
+                child.markDirty();
+            }
+            markGlobalUsers(child);
+        }
+    }
+
+    /**
+     * Writes the value changed into the source file itself, if no key
+     * or sub group was added or deleted, a single value was changed and
+     * it is written with as many bytes as before, within one sector.
+     * A sector is written as a whole or not at all, so the file is never
+     * left with some values changed and others not, which several patches
+     * could not promise; those are written to a new file instead.
+     * The patch is written after it is known that it is the only one, so
+     * a group that cannot be patched leaves the file untouched; if writing
+     * fails, the source is forgotten and the next save writes the whole file.
+     * @param topGroup the root group
+     * @param target the file, the source of the buffer
+     * @return false if the file has to be written anew
+     * @throws GcfException if writing the patches failed
+     */
+    private boolean patchInPlace(final Group topGroup, final File target) throws GcfException {
+        final List<Group> cleaned = new ArrayList<>();
+        final List<Boolean> dirty = new ArrayList<>();
+        final List<Patch> patches = new ArrayList<>();
+        boolean done = false;
+        try {
+            if (!plan(topGroup, 0, cleaned, dirty, patches) || !atomic(patches)) {
+                return false;
+            }
+            if (!patches.isEmpty()) {
+                try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+                    for (Patch patch : patches) {
+                        final ByteBuffer value = ByteBuffer.wrap(patch.bytes);
+                        long at = patch.offset;
+                        while (value.hasRemaining()) {
+                            at += out.write(value, at);
+                        }
+                    }
+                    out.force(true);
+                }
+            }
+            done = true;
+        } catch (IOException ex) {
+            this.buffer.detachSource();
+            throw new GcfException(
+                    "*** error ocurred while saving " +
+                    this.file.getAbsolutePath() + " ***");
+        } finally {
+            if (!done) {
+                for (int i = 0; i < cleaned.size(); i++) {
+                    cleaned.get(i).restoreDirty(dirty.get(i));
+                }
+            }
+        }
+
+        if (!patches.isEmpty()) {
+            for (Patch patch : patches) {
+                patch.group.replaceSpan(patch.span, patch.written);
+            }
+            try {
+                this.buffer.attachSource(Lexer.map(target), target, target.lastModified());
+            } catch(GcfException ex) {
+                this.buffer.detachSource();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the patches can be written at once: there is at most 
+     * one and it does not cross the boundary of a sector.
+     * @param patches the patches planned
+     * @return true if the patches are written in place
+     */
+    private static boolean atomic(final List<Patch> patches) {
+        if (patches.size() > 1) {
+            return false;
         }
+        for (Patch patch : patches) {
+            if (patch.offset / SECTOR_SIZE != (patch.offset + patch.bytes.length - 1) / SECTOR_SIZE) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Recursive routine to write one group with all its child keys and groups
-     * @param writer reference to the file writer
+     * Collects the patches of a group and its sub groups for
+     * <code>patchInPlace</code>, marking the groups clean.
+     * @param group the group
+     * @param sourceStart offset of the group in the source
+     * @param cleaned filled with the groups marked clean
+     * @param dirty filled with the dirty flags of the groups marked clean
+     * @param patches filled with the patches
+     * @return false if the group cannot be patched in place
+     */
+    private boolean plan(final Group group, final int sourceStart, final List<Group> cleaned,
+                         final List<Boolean> dirty, final List<Patch> patches) {
+        if (!group.subtreeDirty()) {
+            return true;
+        }
+
+        final boolean changed = group.clean();
+        cleaned.add(group);
+        dirty.add(changed);
+        final Map<String,Value> values = changed ? group.values() : null;
+        final List<Span> spans = new ArrayList<>();
+        List<Group> children = new ArrayList<>();
+        if (!group.layout(spans, children)) {
+            if (changed) {
+                return false;
+            }
+            children = group.children();
+        }
+
+        if (changed) {
+            final Set<String> keys = new HashSet<>();
+            for (Span span : spans) {
+                final Value current = (span.key == null) ? null : values.get(span.key);
+                if (current == null) {
+                    return false;
+                }
+                keys.add(span.key);
+                if (!span.matches(current, this.globals)) {
+                    final byte[] literal = literal(current).getBytes(StandardCharsets.UTF_8);
+                    if (literal.length != span.end - span.valueStart) {
+                        return false;
+                    }
+                    patches.add(new Patch(group, span,
+                                          new Span(span.key, current, null, span.start, span.valueStart, span.end),
+                                          sourceStart + span.valueStart, literal));
+                }
+            }
+            if (keys.size() != values.size()) {
+                return false;
+            }
+        }
+
+        for (Group child : children) {
+            if (!child.located()
+                    || !plan(child, sourceStart + child.sourceOffset(), cleaned, dirty, patches)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Recursive routine to write one group with all its child keys and groups.
+     * A group is written from the opening bracket of its header to the 
+     * closing bracket of its footer, the root group with the whole file.
+     * The group is copied from the source if neither the group nor a sub 
+     * group is dirty, it is copied in pieces if only sub groups are dirty, 
+     * or if its layout is kept, and it is formatted otherwise.
      * @param group current group name
      * @param level denominator for at which group level the file currently is
+     * @param parentStart offset of the parent group in the source, -1 if it is not located
+     * @param parentPosition offset of the parent group in the new file
+     * @throws IOException
      */
-    public void writeGroup(
-            final BufferedWriter writer, 
-            final Group group, 
-            final int level)
-    {   
-        final String prefix       = linePrefix(level);        
-        final String absGroupName = group.getPath();
+    private void writeGroup(final Group group, final int level, 
+                            final int parentStart, final long parentPosition) throws IOException {
+        if (this.source == null || parentStart < 0 || !group.located()) {
+            group.clean();
+            formatGroup(group, level, -1, parentPosition);
+            return;
+        }
 
-        if (absGroupName.equals("/")) {
-            writeSubGroups(writer, group, level);
+        final long start = this.position;
+        final int sourceStart = parentStart + group.sourceOffset();
+        if (!group.subtreeDirty()) {
+            copy(sourceStart, sourceStart + group.sourceLength());
+            locate(group, start - parentPosition, group.headerLength(), 
+                   group.footerOffset(), group.sourceLength(), null);
+            return;
         }
-        else {            
-            final String groupName = group.getName();
-            try {
-                writeGroupHead(writer, groupName, prefix);
-                writeKeys(writer, group, prefix);
-                writeSubGroups(writer, group, level+1);
-                writeGroupFoot(writer, groupName, prefix);
-            } catch (IOException ex) {
-                throw new GcfException("Problem writing group: " + groupName);
+
+        final boolean dirty = group.clean();
+        // loads a lazy group, which records its spans
+        final Map<String,Value> values = this.lossless ? group.values() : null;
+        final List<Span> spans = new ArrayList<>();
+        final List<Group> children = new ArrayList<>();
+        if (this.lossless && group.layout(spans, children)) {
+            patchGroup(group, level, sourceStart, parentPosition, values, spans, children);
+        }
+        else if (dirty || !inOrder(group)) {
+            formatGroup(group, level, sourceStart, parentPosition);
+        }
+        else {
+            final int subLevel = group.getPath().equals("/") ? level : level+1;
+            int from = sourceStart;
+            for (Group child : group.children()) {
+                final int childStart = sourceStart + child.sourceOffset();
+                copy(from, childStart);
+                writeGroup(child, subLevel, sourceStart, start);
+                from = childStart + child.sourceLength();
             }
+            final int footerStart = sourceStart + group.footerOffset();
+            copy(from, footerStart);
+            final long footerPosition = this.position;
+            copy(footerStart, sourceStart + group.sourceLength());
+            locate(group, start - parentPosition, group.headerLength(), 
+                   footerPosition - start, this.position - start, null);
         }
     }
-    
+
     /**
-     * Writes the begin of the group.
-     * @param writer reference to the filewriter
-     * @param groupName the current group name
-     * @param prefix the prefix of white spaces for the current line
-     * @throws IOException 
+     * Checks if a group can be copied in pieces, i.e. if its sub groups 
+     * are all located in the source, one after the other.
+     * @param group the group
+     * @return true if the sub groups are in the order of the source
      */
-    private void writeGroupHead(
-            final BufferedWriter writer,
-            final String groupName,
-            final String prefix) throws IOException {
-        writer.write(prefix + "[" + groupName + "]\n");
+    private static boolean inOrder(final Group group) {
+        int end = group.headerLength();
+        for (Group child : group.children()) {
+            if (!child.located() || child.sourceOffset() < end) {
+                return false;
+            }
+            end = child.sourceOffset() + child.sourceLength();
+        }
+        return end <= group.footerOffset();
     }
-    
+
     /**
-     * writes the end of the group.
-     * @param writer reference to the filewriter
-     * @param groupName the current group name
-     * @param prefix the prefix of white spaces for the current line
-     * @throws IOException 
+     * Writes a group whose layout is kept, copying the bytes around the
+     * spans of its keys and its sub groups in the source.
+     * A changed value is written anew behind the unchanged key, a deleted
+     * key or sub group is cut together with its line if nothing else but
+     * a comment is on it. Added keys are written on the lines after the
+     * last key, added sub groups on the lines in front of the footer.
+     * @param group the group
+     * @param level denominator for at which group level the file currently is
+     * @param sourceStart offset of the group in the source
+     * @param parentPosition offset of the parent group in the new file
+     * @param values the keys of the group
+     * @param spans the spans of the group
+     * @param children the sub groups of the group
+     * @throws IOException
      */
-    private void writeGroupFoot(
-            final BufferedWriter writer,
-            final String groupName,
-            final String prefix) throws IOException {
-        writer.write(prefix + "[/" + groupName + "]\n");
+    private void patchGroup(final Group group, final int level, final int sourceStart,
+                            final long parentPosition, final Map<String,Value> values,
+                            final List<Span> spans, final List<Group> children) throws IOException {
+        final long start = this.position;
+        final boolean root = group.getPath().equals("/");
+        final int subLevel = root ? level : level+1;
+        final int headerEnd = sourceStart + group.headerLength();
+        final int footerStart = sourceStart + group.footerOffset();
+        final int end = sourceStart + group.sourceLength();
+
+        // the spans and located sub groups in the order of the source
+        final List<Item> items = new ArrayList<>(spans.size() + children.size());
+        final Set<String> kept = new HashSet<>();
+        int lastKey = -1;
+        int lastKeyStart = -1;
+        for (Span span : spans) {
+            if (span.key != null) {
+                items.add(new Item(sourceStart + span.start, sourceStart + span.end, span, null));
+                kept.add(span.key);
+                if (sourceStart + span.end > lastKey) {
+                    lastKey = sourceStart + span.end;
+                    lastKeyStart = sourceStart + span.start;
+                }
+            }
+            else if (span.removed.located()) {
+                final int removedStart = sourceStart + span.removed.sourceOffset();
+                items.add(new Item(removedStart, removedStart + span.removed.sourceLength(), span, null));
+            }
+        }
+        final List<Group> addedGroups = new ArrayList<>();
+        int lastChildStart = -1;
+        for (Group child : children) {
+            if (child.located()) {
+                final int childStart = sourceStart + child.sourceOffset();
+                items.add(new Item(childStart, childStart + child.sourceLength(), null, child));
+                lastChildStart = Math.max(lastChildStart, childStart);
+            }
+            else {
+                addedGroups.add(child);
+            }
+        }
+        items.sort(Comparator.comparingInt(item -> item.start));
+        final List<Map.Entry<String,Value>> addedKeys = new ArrayList<>();
+        for (Map.Entry<String,Value> kv : values.entrySet()) {
+            if (!kept.contains(kv.getKey())) {
+                addedKeys.add(kv);
+            }
+        }
+
+        final int keysAt = keysAt(root, headerEnd, footerStart, lastKey, items);
+        int groupsAt = footerStart;
+        final int low = items.isEmpty() ? headerEnd : Math.max(headerEnd, items.get(items.size()-1).end);
+        while (groupsAt > low && blank(this.source.get(groupsAt-1))) {
+            groupsAt--;
+        }
+        if (!lineStart(groupsAt)) {
+            groupsAt = footerStart;
+        }
+
+        final List<Span> written = new ArrayList<>(spans.size() + addedKeys.size());
+        final String prefix = linePrefix(subLevel);
+        final String keyPrefix = indentation(lastKeyStart, prefix);
+        copy(sourceStart, headerEnd);
+        int from = headerEnd;
+        boolean keysAdded = false;
+        for (Item item : items) {
+            if (!keysAdded && keysAt <= item.start) {
+                from = addKeys(from, keysAt, addedKeys, keyPrefix, start, written);
+                keysAdded = true;
+            }
+            if (item.child != null) {
+                copy(from, item.start);
+                writeGroup(item.child, subLevel, sourceStart, start);
+                from = item.end;
+                continue;
+            }
+
+            final Value current = (item.span.key == null) ? null : values.get(item.span.key);
+            if (current == null) {
+                from = cut(from, item.start, item.end, headerEnd, footerStart);
+                continue;
+            }
+            copy(from, item.start);
+            final int keyStart = (int) (this.position - start);
+            if (item.span.matches(current, this.globals)) {
+                copy(item.start, item.end);
+                written.add(item.span.moveTo(keyStart));
+            }
+            else {
+                copy(item.start, sourceStart + item.span.valueStart);
+                final int valueStart = (int) (this.position - start);
+                put(literal(current));
+                written.add(new Span(item.span.key, current, null,
+                                     keyStart, valueStart, (int) (this.position - start)));
+            }
+            from = item.end;
+        }
+        if (!keysAdded) {
+            from = addKeys(from, keysAt, addedKeys, keyPrefix, start, written);
+        }
+
+        if (!addedGroups.isEmpty()) {
+            final int at = Math.max(from, groupsAt);
+            copy(from, at);
+            final boolean onNewLine = !lineStart(at);
+            if (onNewLine) {
+                put('\n');
+            }
+            final String groupPrefix = indentation(lastChildStart, prefix);
+            for (Group child : addedGroups) {
+                put(groupPrefix);
+                writeGroup(child, subLevel, -1, start);
+                put('\n');
+            }
+            if (onNewLine && at < end) {
+                put(linePrefix(level));
+            }
+            from = at;
+        }
+        copy(from, footerStart);
+        final long footerPosition = this.position;
+        copy(footerStart, end);
+        locate(group, start - parentPosition, group.headerLength(),
+               footerPosition - start, this.position - start, written);
     }
-    
+
+    /**
+     * Finds where the keys added to a group are written: on the line after
+     * the last key, or after the header line if the group has no keys.
+     * The root group without keys gets them in front of its first sub group.
+     * @param root true for the root group
+     * @param headerEnd offset after the header of the group
+     * @param footerStart offset of the footer of the group
+     * @param lastKey offset after the last key, -1 if there is none
+     * @param items the spans and sub groups of the group, in the order of the source
+     * @return the offset in the source
+     */
+    private int keysAt(final boolean root, final int headerEnd, final int footerStart,
+                       final int lastKey, final List<Item> items) {
+        if (root && lastKey < 0) {
+            int at = items.isEmpty() ? footerStart : items.get(0).start;
+            while (at > headerEnd && blank(this.source.get(at-1))) {
+                at--;
+            }
+            return lineStart(at) ? at : items.get(0).start;
+        }
+
+        final int after = Math.max(lastKey, headerEnd);
+        int limit = footerStart;
+        for (Item item : items) {
+            if (item.start >= after) {
+                limit = item.start;
+                break;
+            }
+        }
+        for (int i = after; i < limit; i++) {
+            if (this.source.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return after;
+    }
+
+    /**
+     * Writes the keys added to a group whose layout is kept.
+     * @param from offset in the source up to which it is written
+     * @param at offset in the source where the keys are written
+     * @param added the keys added
+     * @param prefix the prefix of white spaces for the key lines
+     * @param start offset of the group in the new file
+     * @param spans filled with the spans of the keys written
+     * @return offset in the source up to which it is written
+     * @throws IOException
+     */
+    private int addKeys(final int from, final int at, final List<Map.Entry<String,Value>> added,
+                        final String prefix, final long start, final List<Span> spans) throws IOException {
+        if (added.isEmpty()) {
+            return from;
+        }
+
+        final int to = Math.max(from, at);
+        copy(from, to);
+        if (!lineStart(to)) {
+            put('\n');
+        }
+        for (Map.Entry<String,Value> kv : added) {
+            writeKey(kv.getKey(), kv.getValue(), prefix, start, spans);
+        }
+        return to;
+    }
+
+    /**
+     * Skips the bytes of a deleted key or sub group, together with its
+     * line if nothing else but white space and a comment is on it.
+     * @param from offset in the source up to which it is written
+     * @param start offset of the key or sub group
+     * @param end offset after the key or sub group
+     * @param low offset after the header of the group
+     * @param high offset of the footer of the group
+     * @return offset in the source up to which it is written or skipped
+     * @throws IOException
+     */
+    private int cut(final int from, final int start, final int end,
+                    final int low, final int high) throws IOException {
+        int lineStart = start;
+        while (lineStart > Math.max(low, from) && blank(this.source.get(lineStart-1))) {
+            lineStart--;
+        }
+        int lineEnd = end;
+        while (lineEnd < high && (blank(this.source.get(lineEnd)) || this.source.get(lineEnd) == '\r')) {
+            lineEnd++;
+        }
+        if (lineEnd < high && this.source.get(lineEnd) == '#') {
+            while (lineEnd < high && this.source.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+        }
+
+        if (lineStart(lineStart) && (lineEnd == this.source.limit() || this.source.get(lineEnd) == '\n')) {
+            copy(from, lineStart);
+            return Math.min(lineEnd + 1, this.source.limit());
+        }
+        copy(from, start);
+        return end;
+    }
+
+    /**
+     * Gets the indentation of a line in the source, so that added lines
+     * are indented like the lines around them.
+     * @param offset offset of the first key or group on the line, -1 if there is none
+     * @param prefix the indentation if the line has other text in front of the offset
+     * @return the indentation
+     */
+    private String indentation(final int offset, final String prefix) {
+        if (offset < 0) {
+            return prefix;
+        }
+        int lineStart = offset;
+        while (lineStart > 0 && blank(this.source.get(lineStart-1))) {
+            lineStart--;
+        }
+        if (!lineStart(lineStart)) {
+            return prefix;
+        }
+        final char[] indent = new char[offset - lineStart];
+        for (int i = 0; i < indent.length; i++) {
+            indent[i] = (char) this.source.get(lineStart + i);
+        }
+        return new String(indent);
+    }
+
+    /**
+     * Checks if an offset in the source is at the start of a line.
+     */
+    private boolean lineStart(final int offset) {
+        return offset == 0 || this.source.get(offset-1) == '\n';
+    }
+
+    /**
+     * Checks for white space within a line.
+     */
+    private static boolean blank(final byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Formats a group with its keys. The sub groups are written 
+     * with <code>writeGroup</code>, so they may still be copied.
+     * @param group the group
+     * @param level denominator for at which group level the file currently is
+     * @param sourceStart offset of the group in the source, -1 if it is not located
+     * @param parentPosition offset of the parent group in the new file
+     * @throws IOException
+     */
+    private void formatGroup(final Group group, final int level, 
+                             final int sourceStart, final long parentPosition) throws IOException {
+        final long start = this.position;
+        final List<Span> spans = this.lossless ? new ArrayList<>() : null;
+        if (group.getPath().equals("/")) {
+            writeKeys(group, linePrefix(level), start, spans);
+            writeSubGroups(group, level, sourceStart, start);
+            locate(group, start - parentPosition, 0,
+                   this.position - start, this.position - start, spans);
+            return;
+        }
+
+        final String groupName = group.getName();
+        put('[').put(groupName).put(']');
+        final long headerEnd = this.position;
+        put('\n');
+        writeKeys(group, linePrefix(level+1), start, spans);
+        writeSubGroups(group, level+1, sourceStart, start);
+        put(linePrefix(level));
+        final long footerStart = this.position;
+        put("[/").put(groupName).put(']');
+        locate(group, start - parentPosition, headerEnd - start, 
+               footerStart - start, this.position - start, spans);
+    }
+
+    /**
+     * Records where a group was written to in the new file.
+     * @param group the group
+     * @param offset offset of the group header, relative to the offset of the parent
+     * @param headerLength length of the group header
+     * @param footerOffset offset of the group footer, relative to the offset of the group
+     * @param length length of the group, footer included
+     * @param spans the spans of the group in the new file, null if they did not change
+     */
+    private void locate(final Group group, final long offset, final long headerLength, 
+                        final long footerOffset, final long length, final List<Span> spans) {
+        this.locations.add(new Location(group, (int) offset, (int) headerLength,
+                                        (int) footerOffset, (int) length, spans));
+    }
+
     /**
      * Writes the keys of the current group.
-     * @param writer reference to the filewriter
      * @param group current group object
-     * @param prefix the prefix of white spaces for the current line
-     * @throws IOException 
+     * @param prefix the prefix of white spaces for the key lines
+     * @param start offset of the group in the new file
+     * @param spans filled with the spans of the keys, null if they are not kept
+     * @throws IOException
      */
-    private void writeKeys(
-            final BufferedWriter writer,
-            final Group group,
-            final String prefix) throws IOException {
-        for (String key : group.childKeys()) {
-            writer.write("    " + prefix + key + 
-                         " = " + 
-                         getStringRepresentation(group.readValue(key)) + 
-                         "\n");
+    private void writeKeys(final Group group, final String prefix,
+                           final long start, final List<Span> spans) throws IOException {
+        for (Map.Entry<String,Value> kv : group.entries()) {
+            writeKey(kv.getKey(), kv.getValue(), prefix, start, spans);
         }
     }
-    
+
     /**
-     * Writes the sub groups of the current group
-     * @param writer reference to the filewriter
+     * Writes a key on a line of its own.
+     * @param key the key
+     * @param value the value
+     * @param prefix the prefix of white spaces for the key line
+     * @param start offset of the group in the new file
+     * @param spans filled with the span of the key, null if it is not kept
+     * @throws IOException
+     */
+    private void writeKey(final String key, final Value value, final String prefix,
+                          final long start, final List<Span> spans) throws IOException {
+        put(prefix);
+        final long keyStart = this.position;
+        put(key).put(" = ");
+        final long valueStart = this.position;
+        put(literal(value));
+        if (spans != null) {
+            spans.add(new Span(key, value, null, (int) (keyStart - start),
+                               (int) (valueStart - start), (int) (this.position - start)));
+        }
+        put('\n');
+    }
+
+    /**
+     * Writes the sub groups of a formatted group, one per line.
      * @param group current group
-     * @param absGroupName the name of the current group
-     * @param level the prefix of white spaces for the current line
+     * @param level the level of the sub groups
+     * @param sourceStart offset of the group in the source, -1 if it is not located
+     * @param start offset of the group in the new file
+     * @throws IOException
      */
-    private void writeSubGroups(
-            final BufferedWriter writer,
-            final Group group,
-            final int level
-            ) {
-        group.childGroups().forEach(g -> writeGroup(writer, g, level));
+    private void writeSubGroups(final Group group, final int level, 
+                                final int sourceStart, final long start) throws IOException {
+        final String prefix = linePrefix(level);
+        for (Group child : group.children()) {
+            put(prefix);
+            writeGroup(child, level, sourceStart, start);
+            put('\n');
+        }
     }
 
     /**
-     * Gets the amounth of whitespaces at the beginning of each line 
+     * Gets the amounth of whitespaces at the beginning of each line
      * @param level denominator for at which group level the file writer is
      * @return amount of white spaces with respect to the input level
      */
-    public String linePrefix(final int level)
-    {
-        if (level == 0) {
-            return "";
-        }
-        String prefix = "";
-        for (int i = 0; i < level; i++) {
-            prefix = prefix + "    ";
+    private String linePrefix(final int level) {
+        if (level >= this.prefixes.length) {
+            final int known = this.prefixes.length;
+            this.prefixes = Arrays.copyOf(this.prefixes, Math.max(level + 1, known * 2));
+            for (int i = known; i < this.prefixes.length; i++) {
+                this.prefixes[i] = this.prefixes[i-1] + INDENT;
+            }
         }
-        return prefix;
+        return this.prefixes[level];
     }
-    
+
     /**
-     * Gets the string representation of a value object.<br>
-     * Strings are put inbetween double quotes and all other
+     * Gets the literal of a value.<br>
+     * Strings are put inbetween double quotes, doubles are written
+     * without exponent, which the lexer does not read, and all other
      * data types are just simply passed to string.
-     * @param value the object value
-     * @return  the string representation
+     * @param value the value
+     * @return the literal
+     */
+    private static String literal(final Value value) {
+        switch (value.getType()) {
+            case STRING:
+                return '"' + value.toString() + '"';
+            case DOUBLE:
+                final String text = value.toString();
+                if (text.indexOf('E') < 0) {
+                    return text;
+                }
+                // keep the decimal point, so the value is read as a double again
+                final String plain = new BigDecimal(text).stripTrailingZeros().toPlainString();
+                return (plain.indexOf('.') < 0) ? plain + ".0" : plain;
+            default:
+                return value.toString();
+        }
+    }
+
+    /**
+     * Appends text to the char buffer, encoding the buffer when it is full.
+     * @param text the text
+     * @return this writer
+     * @throws IOException
+     */
+    private GcfWriter put(final String text) throws IOException {
+        int from = 0;
+        while (from < text.length()) {
+            if (this.length == this.text.length) {
+                encode(false);
+            }
+            final int to = Math.min(text.length(), from + this.text.length - this.length);
+            text.getChars(from, to, this.text, this.length);
+            count(this.length, this.length + to - from);
+            this.length += to - from;
+            from = to;
+        }
+        return this;
+    }
+
+    /**
+     * Appends a character to the char buffer, encoding the buffer when it is full.
+     * @param c the character
+     * @return this writer
+     * @throws IOException
+     */
+    private GcfWriter put(final char c) throws IOException {
+        if (this.length == this.text.length) {
+            encode(false);
+        }
+        this.text[this.length] = c;
+        count(this.length, this.length + 1);
+        this.length++;
+        return this;
+    }
+
+    /**
+     * Counts the bytes the chars of the text will be encoded to.
+     * A surrogate pair is encoded to four bytes, two per surrogate.
+     * @param from index of the first char
+     * @param to index after the last char
+     */
+    private void count(final int from, final int to) {
+        long count = to - from;
+        for (int i = from; i < to; i++) {
+            final char c = this.text[i];
+            if (c >= 0x80) {
+                count += (c < 0x800 || Character.isSurrogate(c)) ? 1 : 2;
+            }
+        }
+        this.position += count;
+    }
+
+    /**
+     * Copies bytes from the source, after the text appended so far.
+     * @param from offset of the first byte in the source
+     * @param to offset after the last byte in the source
+     * @throws IOException
+     */
+    private void copy(final int from, final int to) throws IOException {
+        if (from == to) {
+            return;
+        }
+        encode(false);
+        this.segment.limit(to).position(from);
+        if (this.segment.remaining() > this.bytes.remaining()) {
+            writeBytes();
+            while (this.segment.remaining() > this.bytes.capacity()) {
+                this.channel.write(this.segment);
+            }
+        }
+        this.bytes.put(this.segment);
+        this.position += to - from;
+    }
+
+    /**
+     * Encodes the char buffer into the byte buffer, writing the byte 
+     * buffer whenever it is full.
+     * A surrogate pair split at the end of the char buffer is kept
+     * for the next call, unless it is the end of the text.
+     * @param end true at the end of the text
+     * @throws IOException
+     */
+    private void encode(final boolean end) throws IOException {
+        this.chars.limit(this.length).position(0);
+        CoderResult result;
+        while ((result = this.encoder.encode(this.chars, this.bytes, end)).isOverflow()) {
+            writeBytes();
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+        if (end) {
+            while (this.encoder.flush(this.bytes).isOverflow()) {
+                writeBytes();
+            }
+        }
+        this.length = this.chars.remaining();
+        System.arraycopy(this.text, this.chars.position(), this.text, 0, this.length);
+    }
+
+    /**
+     * Writes the encoded bytes to the channel.
+     * @throws IOException
+     */
+    private void writeBytes() throws IOException {
+        this.bytes.flip();
+        while (this.bytes.hasRemaining()) {
+            this.channel.write(this.bytes);
+        }
+        this.bytes.clear();
+    }
+
+    /**
+     * Where a group was written to in the new file.
      */
-     private String getStringRepresentation(final Object value) {
-        final String strRepresentation = value.toString();
-        if (!(value instanceof String)) {
-            return strRepresentation;
+    private static final class Location {
+
+        final Group group;
+        final int offset;
+        final int headerLength;
+        final int footerOffset;
+        final int length;
+        final List<Span> spans;
+
+        Location(final Group group, final int offset, final int headerLength, 
+                 final int footerOffset, final int length, final List<Span> spans) {
+            this.group = group;
+            this.offset = offset;
+            this.headerLength = headerLength;
+            this.footerOffset = footerOffset;
+            this.length = length;
+            this.spans = spans;
         }
+    }
+
+    /**
+     * A span or a located sub group of a group whose layout is kept,
+     * with its offsets in the source.
+     */
+    private static final class Item {
 
-        // else it is a string
-        return "\"" + strRepresentation + "\"";
+        final int start;
+        final int end;
+        final Span span;
+        final Group child;
+
+        Item(final int start, final int end, final Span span, final Group child) {
+            this.start = start;
+            this.end = end;
+            this.span = span;
+            this.child = child;
+        }
+    }
+
+    /**
+     * A value written into the source file itself.
+     */
+    private static final class Patch {
+
+        final Group group;
+        final Span span;
+        final Span written;
+        final long offset;
+        final byte[] bytes;
+
+        Patch(final Group group, final Span span, final Span written, 
+              final long offset, final byte[] bytes) {
+            this.group = group;
+            this.span = span;
+            this.written = written;
+            this.offset = offset;
+            this.bytes = bytes;
+        }
     }
-    
 }
@@ -16,10 +16,16 @@
 */
 package gcf.settings;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 /**
  * This class represents a group in the gcf file format.
@@ -29,12 +35,21 @@ import java.util.Map;
  * Furthermore the Group class offers functionality to change
  * the values of existing keys, delete existing keys, create 
  * new key and respective values, as well as creating or deleting 
- * subgroups.
+ * subgroups.<br>
+ * A group can be shared between threads: the keys and sub groups 
+ * are guarded by a lock per group, which readers usually do not 
+ * even acquire, see <code>read</code>.
  */
 public final class Group extends Element {
     
     /* Holds all keys/values */
-    private final Map<String,Object> keys = new LinkedHashMap<>();
+    private final Map<String,Value> keys = new LinkedHashMap<>();
+    
+    /* Holds the sub groups by name, null as long as there are none */
+    private Map<String,Group> children;
+    
+    /* Guards the keys and the sub groups */
+    private final StampedLock lock = new StampedLock();
     
     /* Reference to the main data container */
     private Buffer buffer;
@@ -42,6 +57,45 @@ public final class Group extends Element {
     /* Reference to the group changer */
     private GroupChanger groupChanger;
     
+    /* Input holding the not yet parsed keys, null once the keys are parsed */
+    private volatile ByteBuffer source;
+    
+    /* Range of this group in the source input */
+    private GroupRange range;
+    
+    /* Hash of the group's bytes in the source, -1 if unknown */
+    private long sourceHash = -1;
+    
+    /* True if the keys of this group reference global keys */
+    private boolean usesGlobals;
+    
+    /* True once the keys or sub groups were changed after parsing */
+    private volatile boolean modified;
+    
+    /* Hash of the keys and sub groups, 0 as long as it is not computed */
+    private volatile long contentHash;
+    
+    /* Offset of the group in the source of the buffer, relative to the offset of the parent, -1 if unknown */
+    private int sourceOffset = -1;
+    
+    /* Length of the group header in the source */
+    private int headerLength;
+    
+    /* Offset of the group footer in the source, relative to the offset of the group */
+    private int footerOffset;
+    
+    /* Length of the group in the source, from the header to the end of the footer */
+    private int sourceLength;
+    
+    /* True once the keys or sub groups were changed since the group was read from or written to the source */
+    private boolean dirty;
+    
+    /* True once this group or one of its sub groups is dirty */
+    private volatile boolean subtreeDirty;
+    
+    /* The spans of the keys in the source, and of deleted sub groups, null unless kept */
+    private List<Span> spans;
+    
     
     /**
      * Package privat constructor to create a Group while parsing.
@@ -54,9 +108,70 @@ public final class Group extends Element {
         this.parent = parent;
         this.buffer = buffer;
         this.groupChanger = groupChanger;
+        this.spans = buffer.lossless() ? new ArrayList<>() : null;
         parse(parser);
     }
 
+    /**
+     * Package privat constructor to create a Group whose keys are 
+     * only parsed when they are accessed for the first time.
+     * @param parent the path of the parent group
+     * @param range the range of the group in the input
+     * @param source the input
+     * @param buffer reference to the data buffer
+     * @param groupChanger reference to the group changer
+     */
+    Group(final String parent, final GroupRange range, final ByteBuffer source, 
+          final Buffer buffer, final GroupChanger groupChanger) {
+        this.parent = parent;
+        this.name = range.name;
+        this.path = buffer.symbols().internPath(parent, range.name);
+        this.buffer = buffer;
+        this.groupChanger = groupChanger;
+        this.range = range;
+        this.source = source;
+        this.spans = buffer.lossless() ? new ArrayList<>() : null;
+    }
+
+    /**
+     * Package privat constructor to copy an unchanged group into 
+     * another data buffer, e.g. on reload.
+     * The sub groups are not copied.
+     * @param original the group to copy
+     * @param buffer reference to the data buffer of the copy
+     * @param groupChanger reference to the group changer of the copy
+     */
+    Group(final Group original, final Buffer buffer, final GroupChanger groupChanger) {
+        this.parent = original.parent;
+        this.name = original.name;
+        this.path = original.path;
+        this.buffer = buffer;
+        this.groupChanger = groupChanger;
+        original.read(() -> {
+            this.keys.putAll(original.keys);
+            return null;
+        });
+        this.sourceHash = original.sourceHash;
+        this.usesGlobals = original.usesGlobals;
+        this.spans = (original.spans == null) ? null : new ArrayList<>(original.spans);
+    }
+
+    /**
+     * Package privat constructor to create an empty Group, whose keys 
+     * are then added with <code>loadValue</code>, e.g. from a snapshot.
+     * @param parent the path of the parent group
+     * @param name the name of the group
+     * @param buffer reference to the data buffer
+     * @param groupChanger reference to the group changer
+     */
+    Group(final String parent, final String name, final Buffer buffer, final GroupChanger groupChanger) {
+        this.parent = parent;
+        this.name = name;
+        this.path = buffer.symbols().internPath(parent, name);
+        this.buffer = buffer;
+        this.groupChanger = groupChanger;
+    }
+
     /**
      * Package privat constructor to create a Group while parsing.
      * @param parent the path of the parent group
@@ -79,20 +194,398 @@ public final class Group extends Element {
         this.path   = parent + name + (parent.isEmpty()?"":"/");
     }
     
+    /**
+     * Moves this group to another data buffer.
+     * Used when a group has been parsed into a buffer of its own,
+     * e.g. in parallel, and is then merged into the main buffer.
+     * @param buffer the buffer the group belongs to from now on
+     */
+    void attach(final Buffer buffer) {
+        this.buffer = buffer;
+    }
+    
+    /**
+     * Records where the group came from, so that it can be 
+     * reused if its source did not change.
+     * @param hash hash of the group's bytes in the source
+     * @param globals true if the keys reference global keys
+     */
+    void remember(final long hash, final boolean globals) {
+        this.sourceHash = hash;
+        this.usesGlobals = globals;
+    }
+    
+    /**
+     * Gets the hash of the group's bytes in the source.
+     * @return the hash, -1 if unknown
+     */
+    long sourceHash() {
+        return this.sourceHash;
+    }
+    
+    /**
+     * Checks if this group and its sub groups can be copied instead 
+     * of being parsed again from a source.
+     * That is the case if the group's bytes in the source are the same,
+     * if the groups were parsed completely and not changed since, and
+     * if they do not reference global keys that might have changed.
+     * @param hash hash of the group's bytes in the source
+     * @param globalsChanged true if the global keys might have changed
+     * @return true if the group can be copied
+     */
+    boolean reusable(final long hash, final boolean globalsChanged) {
+        return this.sourceHash == hash && unchanged(globalsChanged);
+    }
+    
+    private boolean unchanged(final boolean globalsChanged) {
+        if (this.modified || this.source != null || this.sourceHash == -1 
+                || (globalsChanged && this.usesGlobals)) {
+            return false;
+        }
+        for (Group child : children()) {
+            if (!child.unchanged(globalsChanged)) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Adds a key while the group is built, before it is shared.
+     * Unlike <code>addValue</code> the group is not marked as changed.
+     * @param key the interned key
+     * @param value the value
+     */
+    void loadValue(final String key, final Value value) {
+        this.keys.putIfAbsent(key, value);
+    }
+    
+    /**
+     * Takes over the content hash of the group this group was copied 
+     * from, once the sub groups were copied as well.
+     * @param original the group copied
+     */
+    void adoptContentHash(final Group original) {
+        this.contentHash = original.contentHash;
+    }
+    
+    /**
+     * Records where the group is located in the source of the buffer, 
+     * the bytes it was read from or last written to.
+     * @param offset offset of the group header, relative to the offset of the parent
+     * @param headerLength length of the group header
+     * @param footerOffset offset of the group footer, relative to the offset of the group
+     * @param length length of the group, footer included
+     */
+    void locate(final int offset, final int headerLength, final int footerOffset, final int length) {
+        this.sourceOffset = offset;
+        this.headerLength = headerLength;
+        this.footerOffset = footerOffset;
+        this.sourceLength = length;
+    }
+    
+    /**
+     * Records where a group is located in the source of the buffer.
+     * @param range the range of the group
+     * @param parentStart offset of the parent group in the source
+     */
+    void locate(final GroupRange range, final int parentStart) {
+        locate(range.start - parentStart, range.headerEnd - range.start, 
+               range.footerStart - range.start, range.end - range.start);
+    }
+    
+    /**
+     * Checks if it is known where the group is located in the source.
+     * @return true if the group is located
+     */
+    boolean located() {
+        return this.sourceOffset >= 0;
+    }
+    
+    /**
+     * Gets the offset of the group in the source.
+     * @return the offset relative to the offset of the parent group
+     */
+    int sourceOffset() {
+        return this.sourceOffset;
+    }
+    
+    /**
+     * Gets the length of the group header in the source.
+     * @return the length
+     */
+    int headerLength() {
+        return this.headerLength;
+    }
+    
+    /**
+     * Gets the offset of the group footer in the source.
+     * @return the offset relative to the offset of the group
+     */
+    int footerOffset() {
+        return this.footerOffset;
+    }
+    
+    /**
+     * Gets the length of the group in the source.
+     * @return the length, footer included
+     */
+    int sourceLength() {
+        return this.sourceLength;
+    }
+    
+    /**
+     * Keeps the spans of the keys parsed from now on, see <code>Span</code>.
+     */
+    void keepLayout() {
+        this.spans = new ArrayList<>();
+    }
+    
+    /**
+     * Records a parsed key, as needed to write the group back.
+     * @param kv the parsed key
+     * @param groupStart offset of the group in the input
+     */
+    void keep(final KeyValue kv, final int groupStart) {
+        if (kv.global() != null) {
+            this.usesGlobals = true;
+        }
+        if (this.spans != null) {
+            this.spans.add(new Span(kv, groupStart));
+        }
+    }
+    
+    /**
+     * Gets the spans of the keys in the source, and of the deleted 
+     * sub groups, together with the sub groups, so that every byte 
+     * of the group in the source is either covered by a span or a 
+     * sub group, or is layout.
+     * @param spans filled with the spans
+     * @param children filled with the sub groups, in the order they were added
+     * @return false if the spans are not kept
+     */
+    boolean layout(final List<Span> spans, final List<Group> children) {
+        return read(() -> {
+            spans.clear();
+            children.clear();
+            if (this.spans == null) {
+                return false;
+            }
+            spans.addAll(this.spans);
+            if (this.children != null) {
+                children.addAll(this.children.values());
+            }
+            return true;
+        });
+    }
+    
+    /**
+     * Replaces the spans, once the group was written to a new source.
+     * The spans of deleted sub groups that were written all the same,
+     * since they were deleted while saving, are kept.
+     * @param spans the spans in the new source
+     * @param written the groups written to the new source
+     */
+    void locateKeys(final List<Span> spans, final Set<Group> written) {
+        write(() -> {
+            if (this.spans != null) {
+                for (Span span : this.spans) {
+                    if (span.removed != null && written.contains(span.removed)) {
+                        spans.add(span);
+                    }
+                }
+            }
+            this.spans = spans;
+        });
+    }
+    
+    /**
+     * Drops the spans, e.g. if the source holds bytes that are not 
+     * covered by them, so that the group is formatted when written.
+     */
+    void dropSpans() {
+        write(() -> this.spans = null);
+    }
+    
+    /**
+     * Replaces a span, once its value was written to the source.
+     * @param span the span
+     * @param written the span with the value written
+     */
+    void replaceSpan(final Span span, final Span written) {
+        write(() -> {
+            final int i = (this.spans == null) ? -1 : this.spans.indexOf(span);
+            if (i >= 0) {
+                this.spans.set(i, written);
+            }
+        });
+    }
+    
+    /**
+     * Checks if the keys of this group reference global keys.
+     * @return true if a global key is referenced
+     */
+    boolean usesGlobals() {
+        return this.usesGlobals;
+    }
+    
+    /**
+     * Checks if the keys or sub groups of this group were changed 
+     * since they were read from or written to the source.
+     * @return true if the group is dirty
+     */
+    synchronized boolean dirty() {
+        return this.dirty;
+    }
+    
+    /**
+     * Marks the group dirty again after <code>clean</code>, 
+     * if it could not be written after all.
+     * @param dirty the keys or sub groups of the group itself were changed
+     */
+    synchronized void restoreDirty(final boolean dirty) {
+        this.dirty |= dirty;
+        this.subtreeDirty = true;
+    }
+    
+    /**
+     * Checks if this group or one of its sub groups were changed since 
+     * they were read from or written to the source.
+     * If not, the group can be written by copying its bytes in the source.
+     * @return true if the group or a sub group is dirty
+     */
+    boolean subtreeDirty() {
+        return this.subtreeDirty;
+    }
+    
+    /**
+     * Clears the dirty flags before the group is written.
+     * The flags are cleared before the group is read, so a change 
+     * made meanwhile is either written or marks the group dirty again.
+     * @return true if the keys or sub groups of this group itself were changed
+     */
+    synchronized boolean clean() {
+        this.subtreeDirty = false;
+        final boolean wasDirty = this.dirty;
+        this.dirty = false;
+        return wasDirty;
+    }
+    
+    /**
+     * Marks the keys or sub groups of this group as changed since they were
+     * read from or written to the source, and this group and its parents as 
+     * having a dirty sub group.
+     * A parent marked already has all its parents marked, so the parents
+     * need not be visited any further.
+     */
+    void markDirty() {
+        synchronized (this) {
+            this.dirty = true;
+        }
+        if (this.buffer == null) {
+            this.subtreeDirty = true;
+            return;
+        }
+        
+        Group group = this;
+        while (group != null && !group.subtreeDirty) {
+            group.subtreeDirty = true;
+            group = this.buffer.parentOf(group);
+        }
+    }
+    
+    /**
+     * Links a group as a sub group of this group.
+     * If there is already a sub group with the same name, 
+     * it is not replaced.
+     * @param child the sub group
+     */
+    void link(final Group child) {
+        write(() -> {
+            if (this.children == null) {
+                this.children = new LinkedHashMap<>();
+            }
+            this.children.putIfAbsent(child.getName(), child);
+        });
+        changed();
+    }
+    
+    /**
+     * Removes the link to a sub group.
+     * @param name the name of the sub group
+     */
+    void unlink(final String name) {
+        write(() -> {
+            if (this.children != null) {
+                final Group child = this.children.remove(name);
+                // the bytes of the sub group are removed when the group is written back
+                if (child != null && child.located() && this.spans != null) {
+                    this.spans.add(new Span(child));
+                }
+            }
+        });
+        changed();
+    }
+    
+    /**
+     * Gets a sub group by its name.
+     * @param name the name of the sub group
+     * @return the sub group, null if there is none with that name
+     */
+    Group child(final String name) {
+        return lookup(() -> (this.children == null) ? null : this.children.get(name));
+    }
+    
+    /**
+     * Gets the sub groups as a list.
+     * @return copy of the sub groups, in the order they were added
+     */
+    List<Group> children() {
+        return read(() -> {
+            if (this.children == null) {
+                return Collections.<Group>emptyList();
+            }
+            
+            return new ArrayList<>(this.children.values());
+        });
+    }
+    
     /**
      * Gets all childgroups as an unmodifiable collection.
+     * The collection is a copy, so sub groups can be added 
+     * or deleted while iterating over it.
      * @return the subgroups
      */
     public Collection<Group> childGroups() {
-        return this.buffer.subGroupsForPath(this.path);
+        return Collections.unmodifiableList(children());
+    }
+    
+    /**
+     * Gets a copy of the keys and their values.
+     * @return the values by key, in the order they were added
+     */
+    Map<String,Value> values() {
+        loaded();
+        return read(() -> new LinkedHashMap<>(this.keys));
+    }
+    
+    /**
+     * Gets the keys and their values, without copying them into a map 
+     * as <code>values()</code> does. The entries must only be read.
+     * @return the entries, in the order they were added
+     */
+    List<Map.Entry<String,Value>> entries() {
+        loaded();
+        return read(() -> new ArrayList<>(this.keys.entrySet()));
     }
     
     /**
      * Gets all subkeys as an unmodifiable collection.
+     * The collection is a copy, so keys can be added or 
+     * deleted while iterating over it.
      * @return the subkeys
      */
     public Collection<String> childKeys() {
-        return Collections.unmodifiableCollection(this.keys.keySet());
+        loaded();
+        return Collections.unmodifiableList(read(() -> new ArrayList<>(this.keys.keySet())));
     }
     
     /**
@@ -101,7 +594,8 @@ public final class Group extends Element {
      * @return true if the key exists in this group, false otherwise
      */
     public boolean hasKey(final String key) {
-        return this.keys.containsKey(key);
+        loaded();
+        return lookup(() -> this.keys.containsKey(key));
     }
     
     /**
@@ -112,7 +606,7 @@ public final class Group extends Element {
      * @param value the (unboxed) numeric value
      */
     public final <T extends Number> void addKey(final String key, final T value) {
-        addObjKey(key, value);
+        addValue(key, Value.of(value));
     }
     
     /**
@@ -121,7 +615,7 @@ public final class Group extends Element {
      * @param value the value string
      */
     public final void addKey(final String key, final String value) {
-        addObjKey(key, value);
+        addValue(key, Value.of(value));
     }
     
     /**
@@ -130,16 +624,65 @@ public final class Group extends Element {
      * @param value the boolean value
      */
     public final void addKey(final String key, final boolean value) {
-        addObjKey(key, value);
+        addValue(key, Value.of(value));
     }
     
     /**
      * Adds a key and a value to the child keys container.
      * @param key the key string
-     * @param value the value object
+     * @param value the value
      */
-    void addObjKey(final String key, final Object value) {
-        this.keys.putIfAbsent(key, value);
+    void addValue(final String key, final Value value) {
+        final String symbol = (this.buffer == null) ? key : this.buffer.symbols().intern(key);
+        loaded();
+        write(() -> this.keys.putIfAbsent(symbol, value));
+        modified();
+    }
+    
+    /**
+     * Changes several keys at once, under one lock and counted as 
+     * one change, see <code>Batch</code>.
+     * @param changes the new values by key, null for the keys to delete
+     * @param moved the keys deleted and added again, which go to the end
+     */
+    void apply(final Map<String,Value> changes, final Set<String> moved) {
+        loaded();
+        write(() -> {
+            for (Map.Entry<String,Value> kv : changes.entrySet()) {
+                if (kv.getValue() == null || moved.contains(kv.getKey())) {
+                    this.keys.remove(kv.getKey());
+                }
+                if (kv.getValue() != null) {
+                    this.keys.put(kv.getKey(), kv.getValue());
+                }
+            }
+        });
+        modified();
+    }
+    
+    /**
+     * Copies the keys, the sub group links and the spans of this group, 
+     * so that a batch can put them back if applying it fails.
+     * @return the copy
+     */
+    State state() {
+        loaded();
+        return read(() -> new State(this.keys, this.children, this.spans));
+    }
+    
+    /**
+     * Puts back the keys, the sub group links and the spans copied
+     * with <code>state</code>.
+     * @param state the copy
+     */
+    void restore(final State state) {
+        write(() -> {
+            this.keys.clear();
+            this.keys.putAll(state.keys);
+            this.children = (state.children == null) ? null : new LinkedHashMap<>(state.children);
+            this.spans = (state.spans == null) ? null : new ArrayList<>(state.spans);
+        });
+        modified();
     }
     
     /**
@@ -149,7 +692,9 @@ public final class Group extends Element {
      * @param key the key string
      */
     public void deleteKey(final String key) {
-        this.keys.remove(key);
+        loaded();
+        write(() -> this.keys.remove(key));
+        modified();
     }
     
     /**
@@ -159,7 +704,7 @@ public final class Group extends Element {
      * @param value the value as a string
      */
     public void changeValue(final String key, final String value) throws GcfException {
-        changeObjValue(key, value);
+        changeValue(key, Value.of(value));
     }
     
     /**
@@ -172,24 +717,30 @@ public final class Group extends Element {
      * @param value the (unboxed) numeric value
      */
     public <T extends Number> void changeValue(final String key, final T value) throws GcfException {
-        changeObjValue(key, value);
+        changeValue(key, Value.of(value));
     }
     
     /**
      * Changes the value of an already existing key.
      * If the key does not exist, an exception is thrown.
      * @param key the key string
-     * @param value the value as an Object
+     * @param value the new value
      */
-    private void changeObjValue(final String key, final Object value) throws GcfException {
-        if (hasKey(key) == false) {
-            throw new GcfException("cannot change value for key \""+key+"\" in group \""+getPath()+"\". No such key!");
-        }
-        this.keys.put(key, value);
+    private void changeValue(final String key, final Value value) throws GcfException {
+        loaded();
+        write(() -> {
+            if (this.keys.containsKey(key) == false) {
+                throw new GcfException("cannot change value for key \""+key+"\" in group \""+getPath()+"\". No such key!");
+            }
+            this.keys.put(key, value);
+        });
+        modified();
     }
     
     /**
      * Retrieves a subgroup within this group.
+     * The path is relative to this group, e.g. <code>Sub/</code> 
+     * or <code>../Other/</code>.
      * If the relative group is not present, an exception is thrown.
      * If the group path passed is absolute, an exception is thrown, 
      * since for retrieving absolute groups the instance of the
@@ -199,11 +750,76 @@ public final class Group extends Element {
      * @return the group object
      */
     public Group getGroup(final String groupPath) throws GcfException {
-        if (this.groupChanger.isPathAbsolute(groupPath)) {
+        return getGroup(this.groupChanger.path(groupPath));
+    }
+    
+    /**
+     * Retrieves a subgroup within this group by a parsed path.
+     * If the relative group is not present, an exception is thrown.
+     * If the group path passed is absolute, an exception is thrown.
+     * @param groupPath the relative group path
+     * @return the group object
+     */
+    public Group getGroup(final GroupPath groupPath) throws GcfException {
+        if (groupPath.isAbsolute()) {
             throw new GcfException("passed absolute group path to retrieve sub group");
         }
         
-        return this.groupChanger.changeGroup(groupPath);
+        return this.groupChanger.changeGroup(groupPath, this);
+    }
+    
+    /**
+     * Finds the differences between this group and another version of it,
+     * e.g. the same group of the settings before and after a reload.
+     * Sub groups with the same <code>contentHash</code> are not visited.
+     * @param newer the other version of the group
+     * @return the changes from this group to the other one
+     */
+    public List<Difference> diff(final Group newer) {
+        return Difference.between(this, newer);
+    }
+    
+    /**
+     * Gets a hash of the keys, their values and the sub groups of 
+     * this group, including all their keys and sub groups.
+     * Groups with the same content have the same hash, also in 
+     * different <code>Settings</code> and different JVMs; the order 
+     * of the keys and sub groups does not matter. Groups with a 
+     * different content have a different hash with a very high 
+     * probability, so two groups can be compared by their hashes.<br>
+     * The hash is computed once and kept until the group or one of 
+     * its sub groups is changed, then it is computed again, taking 
+     * the kept hashes of the unchanged sub groups.
+     * @return the hash, never 0
+     */
+    public long contentHash() {
+        final long hash = this.contentHash;
+        if (hash != 0) {
+            return hash;
+        }
+        
+        final long changes = (this.buffer == null) ? 0 : this.buffer.changes();
+        loaded();
+        long sum = read(() -> {
+            long keySum = 0;
+            for (Map.Entry<String,Value> kv : this.keys.entrySet()) {
+                keySum += Value.mix64(Value.hash64(kv.getKey()) * 31 + kv.getValue().hash64());
+            }
+            return keySum;
+        });
+        for (Group child : children()) {
+            sum += Value.mix64(Value.hash64(child.getName()) * 37 + child.contentHash());
+        }
+        final long mixed = Value.mix64(sum);
+        final long computed = (mixed == 0) ? 1 : mixed;
+        
+        // not kept if something was changed meanwhile, see changed()
+        synchronized (this) {
+            if (this.buffer == null || this.buffer.changes() == changes) {
+                this.contentHash = computed;
+            }
+        }
+        return computed;
     }
     
     /**
@@ -218,7 +834,11 @@ public final class Group extends Element {
      * @param group the group object.
      */
     public void addSubGroup(final Group group) {
+        group.buffer = this.buffer;
+        group.groupChanger = this.groupChanger;
         this.buffer.addGroup(group);
+        this.modified = true;
+        markDirty();
     }
     
     /**
@@ -241,6 +861,8 @@ public final class Group extends Element {
     public void deleteSubGroup(final String groupName) {
         final String absolutePath = this.path + groupName + "/";
         this.buffer.deleteSubGroup(absolutePath);
+        this.modified = true;
+        markDirty();
     }
     
     /**
@@ -251,83 +873,89 @@ public final class Group extends Element {
      * @return the value as a Object
      */
     Object readValue(final String key) throws GcfException {
-        if (!this.keys.containsKey(key)) {
+        return value(key).toObject();
+    }
+    
+    /**
+     * Gets the typed value of a key.
+     * If the key is not present within this group, 
+     * an exception is thrown.
+     * @param key the key string
+     * @return the value
+     */
+    Value value(final String key) throws GcfException {
+        loaded();
+        
+        // spelled out instead of using lookup(), since this is the hot path
+        long stamp = this.lock.tryOptimisticRead();
+        Value value = null;
+        if (stamp != 0) {
+            try {
+                value = this.keys.get(key);
+            } catch(RuntimeException ex) {
+                stamp = 0;
+            }
+        }
+        if (!this.lock.validate(stamp)) {
+            stamp = this.lock.readLock();
+            try {
+                value = this.keys.get(key);
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+        
+        if (value == null) {
             throw new GcfException("no key \""+key+"\" in group \""+this.path+"\"");
         }
         
-        return this.keys.get(key);
+        return value;
     }
     
     /**
      * Reads a value as a short.
      * If the key is not present or if the value 
-     * cannot be parsed as a short, an exception 
+     * cannot be represented as a short, an exception 
      * is thrown.
      * @param key the key string
      * @return the value as a short
      */
     public short readShort(final String key) throws GcfException {
-        short s = 0;
-        try {
-            s = Short.parseShort(readValue(key).toString());
-        } catch(NumberFormatException ex) {
-            throw new GcfException("value "+readValue(key)+ " cannot be parse as an short");
-        }
-        return s;
+        return value(key).asShort();
     }
     
     /**
      * Reads a value as a int.
      * If the key is not present or if the value 
-     * cannot be parsed as a int, an exception 
+     * cannot be represented as a int, an exception 
      * is thrown.
      * @param key the key string
      * @return the value as an int
      */
     public int readInt(final String key) throws GcfException {
-        int nr = 0;
-        try {
-            nr = Integer.parseInt(readValue(key).toString());
-        } catch(NumberFormatException ex) {
-            throw new GcfException("value "+readValue(key)+ " cannot be parse as an integer");
-        }
-        return  nr;
+        return value(key).asInt();
     }
     
     /**
      * Reads a value as a float.
      * If the key is not present or if the value 
-     * cannot be parsed as a float, an exception 
-     * is thrown.
+     * is not a number, an exception is thrown.
      * @param key the key string
      * @return the value as a float
      */
     public float readFloat(final String key) throws GcfException {
-        float f = 0.f;
-        try {
-            f = Float.parseFloat(readValue(key).toString());
-        } catch(NumberFormatException ex) {
-            throw new GcfException("value "+readValue(key)+ " cannot be parse as an float");
-        }
-        return f;
+        return value(key).asFloat();
     }
     
     /**
      * Reads a value as a double.
      * If the key is not present or if the value 
-     * cannot be parsed as a double, an exception 
-     * is thrown.
+     * is not a number, an exception is thrown.
      * @param key the key string
      * @return the value as a double
      */
     public double readDouble(final String key) {
-        double d = 0.;
-        try {
-            d = Double.parseDouble(readValue(key).toString());
-        } catch(NumberFormatException ex) {
-            throw new GcfException("value "+readValue(key)+ " cannot be parse as a double");
-        }
-        return d;
+        return value(key).asDouble();
     }
     
     /**
@@ -342,13 +970,13 @@ public final class Group extends Element {
      * @return the value as a string
      */
     public String readString(final String key) {
-        final Object obj = readValue(key);
-        if (!(obj instanceof String)) {
+        final Value value = value(key);
+        if (value.getType() != ValueType.STRING) {
             final String msg = String.format("value for key \"%s\" in group %s is not a string. Use appropriate type.",
                                              key,this.path);
             GcfWarning.printWarning(msg);
         }
-        return obj.toString();
+        return value.toString();
     }
     
     /**
@@ -360,9 +988,13 @@ public final class Group extends Element {
      * @return 
      */
     public boolean readBoolean(final String key) {
-        final String value = readValue(key).toString().toLowerCase();
-        if (value.equals("true") || value.equals("false")) {
-            return Boolean.parseBoolean(value);
+        final Value value = value(key);
+        if (value.getType() == ValueType.BOOLEAN || value.getType() == ValueType.STRING) {
+            try {
+                return value.asBoolean();
+            } catch(GcfException ex) {
+                // reported below
+            }
         }
         
         throw new GcfException("value for key \""+key+"\" is not a boolean");
@@ -380,27 +1012,33 @@ public final class Group extends Element {
      */
     @Override
     void parse(final Parser parser) {
-        // Group header
+        // Group header, located by its absolute offset until the parent makes it relative
+        final int start = (int) parser.lookahead.getStart();
         parser.match(TokenType.GROUP_LBRACE);
-        this.name = parser.match(TokenType.GROUP_NAME);
+        this.name = parser.matchSymbol(TokenType.GROUP_NAME);
+        final int headerEnd = (int) parser.lookahead.getEnd();
         parser.match(TokenType.GROUP_RBRACE);
-        this.path = this.parent + this.name + "/";
+        this.path = this.buffer.symbols().internPath(this.parent, this.name);
+        
+        // add this group to the global data container, before its sub groups
+        this.buffer.addGroup(this);
         
         // Group content
-        groupContent(parser);
+        groupContent(parser, start);
         
         // Group footer
+        final int footerStart = (int) parser.lookahead.getStart();
         parser.match(TokenType.GROUP_LBRACE);
         parser.match(TokenType.GROUP_FSLASH);
-        final String closingGroupname = parser.match(TokenType.GROUP_NAME);
-        if (this.name.equals(closingGroupname) == false) {
+        final boolean closed = parser.lookahead.textEquals(this.name);
+        parser.match(TokenType.GROUP_NAME);
+        if (closed == false) {
             throw new GcfException("group \""+this.path+"\" not correctly closed at line "+parser.lookahead.getLineNumber());
         }
         
+        final int end = (int) parser.lookahead.getEnd();
         parser.match(TokenType.GROUP_RBRACE);
-        
-        // add this group to the global data container
-        this.buffer.addGroup(this);
+        locate(start, headerEnd - start, footerStart - start, end - start);
     }
 
     /**
@@ -408,16 +1046,19 @@ public final class Group extends Element {
      * Here the group content is parsed using two tokens of lookahead,
      * as part of the LL(2) parser architecture.
      * @param parser reference to the parser object 
+     * @param start offset of this group in the input
      */
-    private void groupContent(final Parser parser) {
+    private void groupContent(final Parser parser, final int start) {
         while(!parser.lookahead.getType().equals(TokenType.EOF)) {
             if (parser.lookahead.getType().equals(TokenType.KEY)) {
                 final KeyValue kv = new KeyValue(getPath(),this.buffer,parser);
                 this.keys.putIfAbsent(kv.getKey(), kv.getValue());
+                keep(kv, start);
             }
             else if (parser.lookahead.getType().equals(TokenType.GROUP_LBRACE) && 
                      !parser.LT(2).getType().equals(TokenType.GROUP_FSLASH)) {
                 final Group subGroup = new Group(this.path,parser,this.buffer,this.groupChanger);
+                subGroup.sourceOffset -= start;
             }
             else if (parser.lookahead.getType().equals(TokenType.GROUP_LBRACE) && 
                      parser.LT(2).getType().equals(TokenType.GROUP_FSLASH)) {
@@ -429,5 +1070,181 @@ public final class Group extends Element {
         }
     }
     
+    /**
+     * Marks the keys of this group as changed, since parsing and since 
+     * the last save, and drops the content hashes.
+     */
+    private void modified() {
+        this.modified = true;
+        markDirty();
+        changed();
+    }
+    
+    /**
+     * Drops the content hash of this group and of its parent groups
+     * after a change.
+     * A kept hash implies kept hashes of all sub groups, so the parents 
+     * need not be visited once a group without a kept hash is reached. 
+     * The change is counted first, so a hash computed meanwhile by 
+     * another thread is not kept.
+     */
+    private void changed() {
+        if (this.buffer == null) {
+            this.contentHash = 0;
+            return;
+        }
+        
+        this.buffer.changed();
+        Group group = this;
+        while (group != null && group.dropContentHash()) {
+            group = this.buffer.parentOf(group);
+        }
+    }
+    
+    /**
+     * Drops the content hash.
+     * @return true if there was a hash kept
+     */
+    private synchronized boolean dropContentHash() {
+        if (this.contentHash == 0) {
+            return false;
+        }
+        this.contentHash = 0;
+        return true;
+    }
+    
+    /**
+     * Parses the keys of this group, if that has not been done yet.
+     */
+    void loaded() {
+        if (this.source != null) {
+            final long stamp = this.lock.writeLock();
+            try {
+                if (this.source != null) load();
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+    }
+    
+    /**
+     * Reads from the keys or sub groups of this group under the read lock.
+     * Used for everything that iterates the maps, since an iteration 
+     * is not sure to end while a writer changes the map.
+     * @param <T>
+     * @param reader the read, which must not change anything
+     * @return the result of the read
+     */
+    private <T> T read(final Supplier<T> reader) {
+        final long stamp = this.lock.readLock();
+        try {
+            return reader.get();
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * Looks up a single entry of the keys or sub groups of this group.
+     * The lookup is first done optimistically, without locking. If a 
+     * writer changed the group meanwhile, the result, or an exception
+     * caused by reading the map while it was changed, is discarded 
+     * and the lookup is repeated under the read lock.
+     * So readers only block each other, or get blocked, while there 
+     * actually is a writer. Only for a single <code>get</code> or 
+     * <code>containsKey</code>, anything else is done with <code>read</code>.
+     * @param <T>
+     * @param reader the lookup, which must not change anything
+     * @return the result of the lookup
+     */
+    private <T> T lookup(final Supplier<T> reader) {
+        long stamp = this.lock.tryOptimisticRead();
+        T result = null;
+        if (stamp != 0) {
+            try {
+                result = reader.get();
+            } catch(RuntimeException ex) {
+                stamp = 0;
+            }
+        }
+        if (this.lock.validate(stamp)) {
+            return result;
+        }
+        
+        stamp = this.lock.readLock();
+        try {
+            return reader.get();
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * Changes the keys or sub groups of this group under the write lock.
+     * @param writer the change
+     */
+    private void write(final Runnable writer) {
+        final long stamp = this.lock.writeLock();
+        try {
+            writer.run();
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Parses the keys of a group created from its range only.
+     * The keys are located between the group header, the sub groups 
+     * and the group footer; each such segment is parsed on its own,
+     * the sub groups are skipped.
+     */
+    private void load() {
+        int from = this.range.headerEnd;
+        int line = this.range.headerEndLine;
+        for (GroupRange child : this.range.children) {
+            loadSegment(from, child.start, line);
+            from = child.end;
+            line = child.endLine;
+        }
+        loadSegment(from, this.range.footerStart, line);
+        
+        this.source = null;
+        this.range = null;
+    }
+    
+    /**
+     * Parses the keys in one segment of the group content.
+     * @param from offset of the segment
+     * @param to offset after the segment
+     * @param line line at the start of the segment
+     */
+    private void loadSegment(final int from, final int to, final int line) {
+        final Lexer lexer = new GcfLexer(this.source, from, to, line, this.buffer.symbols());
+        final Parser parser = new Parser(lexer, 2);
+        while(parser.lookahead.getType().equals(TokenType.KEY)) {
+            final KeyValue kv = new KeyValue(getPath(),this.buffer,parser);
+            this.keys.putIfAbsent(kv.getKey(), kv.getValue());
+            keep(kv, this.range.start);
+        }
+        if (!parser.lookahead.getType().equals(TokenType.EOF)) {
+            throw new GcfException("expecting subgroup or keyvalue, found " + parser.lookahead+ " at line "+parser.lookahead.getLineNumber());
+        }
+    }
+    
+    /**
+     * The keys, the sub group links and the spans of a group, as copied 
+     * by <code>state</code>.
+     */
+    static final class State {
+        
+        final Map<String,Value> keys;
+        final Map<String,Group> children;
+        final List<Span> spans;
+        
+        State(final Map<String,Value> keys, final Map<String,Group> children, final List<Span> spans) {
+            this.keys = new LinkedHashMap<>(keys);
+            this.children = (children == null) ? null : new LinkedHashMap<>(children);
+            this.spans = (spans == null) ? null : new ArrayList<>(spans);
+        }
+    }
 }
-
@@ -16,134 +16,79 @@
 */
 package gcf.settings;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Helper class to assist in the change groups and formatting of 
  * their paths.
+ * Paths passed as strings are parsed into a <code>GroupPath</code>
+ * once and kept in a bounded cache, so a path that is looked up 
+ * repeatedly is not parsed again.<br>
+ * The group changer keeps no current group, a relative path is 
+ * always resolved against the group it is passed to, so it can 
+ * be used from any number of threads.
  */
 final class GroupChanger {
     
-    /* Referece to the currently opened group */
-    private Group currentGroup;    
+    /* Maximum number of parsed paths kept in the cache */
+    private static final int CACHE_SIZE = 256;
     
     /* Reference to the data container */
     private final Buffer buffer;
     
+    /* Parsed paths by their string */
+    private final Map<String,GroupPath> paths = new ConcurrentHashMap<>();
+    
     /**
      * Creates an instance of the group changer.
      * @param buffer reference to the data container
      */
     /*package-privat*/ GroupChanger(final Buffer buffer) {
         this.buffer = buffer;
-        this.currentGroup = this.buffer.getGroup("/");
     }
     
     /**
-     * Changes the current group according to the given path.
-     * The path can be absolute or relative.
-     * If the path is relative the absolute path will be created
-     * internally.
-     * The current opened group field is set to the group specified 
-     * by the input group path, if the such path is present in the 
-     * data container.
-     * The current group then returned.
+     * Gets the group for the given path.
+     * The path can be absolute or relative to the root group.
      * @param changeGroupPath the relativ or absolute path to change to
-     * @return the group object of the newly changed group
-     * @throws GcfException 
+     * @return the group object
+     * @throws GcfException if there is no such group
      */
     /*package-privat*/ Group changeGroup(final String changeGroupPath) throws GcfException {
-        if (changeGroupPath.isEmpty()) {
-            throw new GcfException("trying to access group with empty name not possible!");
-        }
-        
-        if (isRootPath(changeGroupPath)) {
-            throw new GcfException("\"/\" is not a valid group name");
-        }
-        
-        final String newGroupPath = changePath(changeGroupPath);
-        
-        this.currentGroup = this.buffer.getGroup(newGroupPath);
-        return this.currentGroup;
+        return changeGroup(path(changeGroupPath), this.buffer.getGroup("/"));
     }
     
     /**
-     * Chacks if a given path is the (non-accessible) root path.
-     * @param path the oath to be checked
-     * @return true if the input path equals the root path, false otherwise
+     * Gets the group for the given parsed path.
+     * @param groupPath the relativ or absolute path to change to
+     * @param base the group a relative path starts at
+     * @return the group object
+     * @throws GcfException if there is no such group
      */
-    private boolean isRootPath(final String path) {
-        return path.equals("/");
+    /*package-privat*/ Group changeGroup(final GroupPath groupPath, final Group base) throws GcfException {
+        return groupPath.resolve(this.buffer, base);
     }
     
     /**
-     * Constructs a path out of the current group path and 
-     * the input path.
-     * This method is called when the <code>openGroup()</code> 
-     * method is called, so that the correct group is opened.
-     * @param path
-     * @return the new constructed path
+     * Gets the parsed path for a path string.
+     * The path is only parsed if it is not in the cache yet.
+     * The cache is emptied once it is full, so it always holds 
+     * the paths used recently, without bookkeeping on every hit.
+     * @param path the relativ or absolute path
+     * @return the parsed path
+     * @throws GcfException if the path is empty or the root path
      */
-    private String changePath(final String path) {
-        final StringBuilder builder = new StringBuilder();
-        final String newPath = formatPath(path);
-        if (isPathAbsolute(path)) {
-            builder.append(newPath);
-        }
-        else {
-            if (isPathChangeForward(newPath)) {
-                builder.append(this.currentGroup.getPath()).append(newPath);
+    /*package-privat*/ GroupPath path(final String path) throws GcfException {
+        GroupPath groupPath = this.paths.get(path);
+        if (groupPath == null) {
+            groupPath = GroupPath.of(path);
+            if (this.paths.size() >= CACHE_SIZE) {
+                this.paths.clear();
             }
-            else {
-                final int depth = backwardChangeDepth(newPath);
-                String endOfNewPath = path.replaceAll("\\.\\./", "");
-                endOfNewPath = (endOfNewPath.isEmpty()) ? ("") : (formatPath(endOfNewPath));
-                Group parent = this.currentGroup;
-                for(int i=0; i<depth; i++) {
-                    parent = this.buffer.getGroup(parent.getParent());
-
-                }
-                builder.append(parent.getPath()).append(endOfNewPath);
-            }
-        }
-        return builder.toString();
-    }
-    
-    /**
-     * Checks if the input path is absolut (i.e. start with a /)
-     * @param path the path to be checked
-     * @return true if input path is absolut
-     */
-    boolean isPathAbsolute(final String path) {
-        return path.startsWith("/");
-    }
-    
-    /**
-     * Checks if the input path change is forward or backward
-     * @param pathChange the input path change 
-     * @return true if path change is forward
-     */
-    private boolean isPathChangeForward(final String pathChange) {
-        return pathChange.startsWith("../") == false;
-    }
-    
-    /**
-     * Gets the depth of a backward path change, i.e. 
-     * the number of times one has to go high up the 
-     * path hierarchy to change to the new path.
-     * @param pathChange the relative new path
-     * @return the number of backward changes
-     */
-    private int backwardChangeDepth(final String pathChange) {
-        Pattern p = Pattern.compile("\\.\\.\\/");
-        Matcher m = p.matcher(pathChange);
-        
-        int count = 0;
-        while (m.find()){
-            count +=1;
+            this.paths.put(path, groupPath);
         }
-        return count;
+        return groupPath;
     }
     
     /**
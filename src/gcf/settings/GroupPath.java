@@ -0,0 +1,185 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group path, parsed once so that it can be used for any
+ * number of lookups.
+ * The path can be absolute, e.g. <code>/Constants/Sub/</code>,
+ * or relative, e.g. <code>Sub/</code> or <code>../Other/</code>.
+ * A path that is looked up often should be kept as a <code>GroupPath</code>:
+ * <pre>
+ *     private static final GroupPath SUB = GroupPath.of("/Constants/Sub/");
+ *     ...
+ *     final Group sub = settings.getGroup(SUB);
+ * </pre>
+ */
+public final class GroupPath {
+
+    /* The path as it was given */
+    private final String text;
+
+    /* True if the path starts at the root */
+    private final boolean absolute;
+
+    /* The number of leading "../" of a relative path */
+    private final int up;
+
+    /* The group names after the leading "../" */
+    private final String[] names;
+
+    /* The absolute path with a trailing slash, null for relative paths */
+    private final String absolutePath;
+
+    /**
+     * Creates a group path.
+     * @param text the path as it was given
+     * @param absolute true if the path is absolute
+     * @param up the number of leading "../"
+     * @param names the group names after the leading "../"
+     */
+    private GroupPath(final String text, final boolean absolute, final int up, final String[] names) {
+        this.text = text;
+        this.absolute = absolute;
+        this.up = up;
+        this.names = names;
+        this.absolutePath = absolute ? GroupChanger.formatPath(text) : null;
+    }
+
+    /**
+     * Parses a group path.
+     * The trailing slash is optional.
+     * @param path the absolute or relative group path
+     * @return the parsed path
+     * @throws GcfException if the path is empty or the root path
+     */
+    public static GroupPath of(final String path) throws GcfException {
+        if (path.isEmpty()) {
+            throw new GcfException("trying to access group with empty name not possible!");
+        }
+
+        if (path.equals("/")) {
+            throw new GcfException("\"/\" is not a valid group name");
+        }
+
+        final boolean absolute = path.startsWith("/");
+        final List<String> names = new ArrayList<>();
+        int up = 0;
+        int from = absolute ? 1 : 0;
+        while (from < path.length()) {
+            int to = path.indexOf('/', from);
+            if (to < 0) to = path.length();
+            final String name = path.substring(from, to);
+            if (!absolute && name.equals("..") && names.isEmpty()) {
+                up++;
+            }
+            else if (!name.isEmpty()) {
+                names.add(name);
+            }
+            from = to + 1;
+        }
+
+        return new GroupPath(path, absolute, up, names.toArray(new String[names.size()]));
+    }
+
+    /**
+     * Checks if the path is absolute, i.e. starts with a /.
+     * @return true if the path is absolute
+     */
+    public boolean isAbsolute() {
+        return this.absolute;
+    }
+
+    /**
+     * Finds the group this path leads to.
+     * An absolute path is looked up directly, a relative path is
+     * followed from the base group, going up to the parent for
+     * every leading "../" and down to the sub group for every name.
+     * @param buffer the data container
+     * @param base the group a relative path starts at
+     * @return the group
+     * @throws GcfException if there is no such group
+     */
+    /*package-privat*/ Group resolve(final Buffer buffer, final Group base) throws GcfException {
+        if (this.absolute) {
+            return buffer.getGroup(this.absolutePath);
+        }
+
+        Group group = base;
+        for (int i=0; i<this.up; i++) {
+            group = buffer.getGroup(group.getParent());
+        }
+
+        final Group start = group;
+        for (String name : this.names) {
+            group = group.child(name);
+            if (group == null) {
+                throw new GcfException(
+                        "group \"" + start.getPath() + String.join("/", this.names) + "/\" does not exist"
+                        );
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Finds the frozen group a relative path leads to.
+     * @param base the group the path starts at
+     * @return the group
+     * @throws GcfException if there is no such group
+     */
+    /*package-privat*/ FrozenGroup resolve(final FrozenGroup base) throws GcfException {
+        FrozenGroup group = base;
+        for (int i=0; i<this.up; i++) {
+            group = group.parentGroup();
+            if (group == null) {
+                throw new GcfException("group \"\" does not exist");
+            }
+        }
+
+        final FrozenGroup start = group;
+        for (String name : this.names) {
+            group = group.child(name);
+            if (group == null) {
+                throw new GcfException(
+                        "group \"" + start.getPath() + String.join("/", this.names) + "/\" does not exist"
+                        );
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Gets the absolute path with a trailing slash.
+     * @return the absolute path, null for relative paths
+     */
+    /*package-privat*/ String absolutePath() {
+        return this.absolutePath;
+    }
+
+    /**
+     * Gets the path as it was given.
+     * @return the path string
+     */
+    @Override
+    public String toString() {
+        return this.text;
+    }
+}
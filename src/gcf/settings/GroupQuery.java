@@ -0,0 +1,231 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Selects groups by a path pattern.
+ * A pattern is an absolute group path whose names may contain wildcards:
+ * <pre>
+ *     /Servers/S1/              the group S1 only
+ *     /Servers/*&#47;              all sub groups of Servers
+ *     /Servers/S?/              sub groups of Servers named S and one character
+ *     /Servers/**&#47;Endpoints/   all groups named Endpoints below Servers
+ *     /Servers/**&#47;             Servers and all groups below it
+ * </pre>
+ * A <code>*</code> matches any number of characters and a <code>?</code>
+ * one character within a group name, a <code>**</code> matches any
+ * number of groups, including none.<br>
+ * The groups form a tree, so a query only visits the groups it can
+ * match: a name without wildcards is looked up among the sub groups,
+ * a name with wildcards is compared with every sub group, and only
+ * a <code>**</code> walks the subtree below it.
+ */
+final class GroupQuery {
+
+    /* Matches any number of groups */
+    private static final String ANY_GROUPS = "**";
+
+    /* The group names of the pattern */
+    private final String[] names;
+
+    /* True if a group can be reached by more than one match */
+    private final boolean ambiguous;
+
+    /**
+     * Compiles a pattern.
+     * @param pattern the absolute path pattern
+     * @throws GcfException if the pattern is not a valid absolute path
+     */
+    GroupQuery(final String pattern) throws GcfException {
+        if (!pattern.startsWith("/") || pattern.equals("/")) {
+            throw new GcfException("\""+pattern+"\" is not a valid absolute group path pattern");
+        }
+
+        final String path = GroupChanger.formatPath(pattern);
+        this.names = path.substring(1, path.length()-1).split("/", -1);
+        int anyGroups = 0;
+        for (String name : this.names) {
+            if (name.isEmpty()) {
+                throw new GcfException("\""+pattern+"\" contains an empty group name");
+            }
+            if (name.equals(ANY_GROUPS)) anyGroups++;
+        }
+        this.ambiguous = (anyGroups > 1);
+    }
+
+    /**
+     * Selects the groups below the root group matching the pattern.
+     * The groups are visited while the stream is consumed, in the
+     * order they appear in the file.
+     * @param root the root group
+     * @return the matching groups
+     */
+    Stream<Group> select(final Group root) {
+        final Iterator<Group> matches = new Matches(root);
+        return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(matches, Spliterator.ORDERED | Spliterator.NONNULL),
+            false
+        );
+    }
+
+    /**
+     * Checks if a group name matches a name of the pattern.
+     * @param pattern the name of the pattern, possibly with wildcards
+     * @param name the group name
+     * @return true if the name matches
+     */
+    static boolean matches(final String pattern, final String name) {
+        int p = 0;
+        int n = 0;
+        int star = -1;
+        int resume = 0;
+        while (n < name.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+                p++;
+                n++;
+            }
+            else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                resume = n;
+            }
+            else if (star >= 0) {
+                // let the last star match one more character
+                p = star + 1;
+                n = ++resume;
+            }
+            else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') p++;
+        return p == pattern.length();
+    }
+
+    /**
+     * Checks if a name of the pattern contains wildcards.
+     * @param name the name of the pattern
+     * @return true if the name contains a wildcard
+     */
+    private static boolean isWildcard(final String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0;
+    }
+
+    /**
+     * Iterates over the matching groups, depth first.
+     * A pending entry is a group together with the index of the
+     * first name of the pattern its sub groups still have to match.
+     */
+    private final class Matches implements Iterator<Group> {
+
+        /* The groups still to be visited */
+        private final Deque<Group> groups = new ArrayDeque<>();
+
+        /* The pattern index per group still to be visited */
+        private final Deque<Integer> indices = new ArrayDeque<>();
+
+        /* The groups already returned, only needed for ambiguous patterns */
+        private final Set<Group> returned;
+
+        /* The root group, which is never selected itself */
+        private final Group root;
+
+        /* The next match, null if not yet searched */
+        private Group next;
+
+        Matches(final Group root) {
+            this.root = root;
+            this.returned = ambiguous ? Collections.newSetFromMap(new IdentityHashMap<>()) : null;
+            expand(root, 0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null && !this.groups.isEmpty()) {
+                final Group group = this.groups.pop();
+                final int index = this.indices.pop();
+                if (index < names.length) {
+                    expand(group, index);
+                }
+                else if (group != this.root && (this.returned == null || this.returned.add(group))) {
+                    this.next = group;
+                }
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public Group next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final Group group = this.next;
+            this.next = null;
+            return group;
+        }
+
+        /**
+         * Pushes the sub groups of a group matching the name at index.
+         * They are pushed in reverse, so they are visited in file order.
+         * @param group the group
+         * @param index the index of the name in the pattern
+         */
+        private void expand(final Group group, final int index) {
+            final String name = names[index];
+            if (name.equals(ANY_GROUPS)) {
+                // either the sub groups are part of the match, or none is
+                final List<Group> children = group.children();
+                for (int i=children.size()-1; i>=0; i--) {
+                    push(children.get(i), index);
+                }
+                push(group, index+1);
+            }
+            else if (isWildcard(name)) {
+                final List<Group> children = group.children();
+                for (int i=children.size()-1; i>=0; i--) {
+                    if (matches(name, children.get(i).getName())) {
+                        push(children.get(i), index+1);
+                    }
+                }
+            }
+            else {
+                final Group child = group.child(name);
+                if (child != null) {
+                    push(child, index+1);
+                }
+            }
+        }
+
+        private void push(final Group group, final int index) {
+            this.groups.push(group);
+            this.indices.push(index);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+  Settings 
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes where a group is located in the input, as found by 
+ * the <code>GcfScanner</code>.
+ * The offsets are byte offsets into the input:
+ * <pre>
+ *     [Name]  key = 1  [Sub] ... [/Sub]  [/Name]
+ *     ^      ^                           ^       ^
+ *     start  headerEnd         footerStart       end
+ * </pre>
+ */
+final class GroupRange {
+    
+    /* The name of the group */
+    final String name;
+    
+    /* Offset of the opening bracket of the group header */
+    final int start;
+    
+    /* Line of the group header */
+    final int line;
+    
+    /* Offset after the closing bracket of the group header */
+    int headerEnd;
+    
+    /* Line at the end of the group header */
+    int headerEndLine;
+    
+    /* Offset of the opening bracket of the group footer */
+    int footerStart;
+    
+    /* Offset after the closing bracket of the group footer */
+    int end;
+    
+    /* Line of the group footer */
+    int endLine;
+    
+    /* Hash of the bytes of the group, -1 if the group must not be reused */
+    long hash = -1;
+    
+    /* True if the keys of the group, without its sub groups, may reference global keys */
+    boolean globals;
+    
+    /* The ranges of the sub groups in document order */
+    final List<GroupRange> children = new ArrayList<>();
+    
+    /**
+     * Creates the range of a group whose header has been found.
+     * @param name the name of the group
+     * @param start offset of the opening bracket of the header
+     * @param line line of the header
+     */
+    GroupRange(final String name, final int start, final int line) {
+        this.name = name;
+        this.start = start;
+        this.line = line;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Parses a gcf input again, reusing the groups of the previous
+ * parse whose bytes did not change.
+ * The <code>GcfScanner</code> records the range of every group, the
+ * bytes of every range are hashed, sub groups first, so that every
+ * byte is hashed only once. A group whose hash is the same as the one
+ * of the previous group with the same path is copied together with
+ * its sub groups, only the other groups are parsed.<br>
+ * Groups referencing global keys are parsed again if the global
+ * keys changed. Groups that were changed after the previous parse
+ * are parsed again as well, so the result is always the same as
+ * if the whole input had been parsed.
+ */
+final class IncrementalParser {
+
+    /* Reference to the main data buffer */
+    private final Buffer buffer;
+
+    /* Reference to the groupchanger utility class */
+    private final GroupChanger groupChanger;
+
+    /* The root group of the previous parse, null if there is none */
+    private final Group previous;
+
+    /* The input bytes */
+    private ByteBuffer input;
+
+    /* True if the global keys differ from the previous parse */
+    private boolean globalsChanged;
+
+    /**
+     * Create an incremental parser.
+     * @param buffer        reference to the main data buffer
+     * @param groupChanger  reference to the groupchanger utility class
+     * @param previous      the data buffer of the previous parse, null if there is none
+     */
+    IncrementalParser(final Buffer buffer, final GroupChanger groupChanger, final Buffer previous) {
+        this.buffer = buffer;
+        this.groupChanger = groupChanger;
+        this.previous = (previous == null) ? null : previous.getGroup("/");
+    }
+
+    /**
+     * Scans the input and adds all its groups to the buffer, either
+     * copied from the previous parse or parsed.
+     * @param input the input bytes, from position 0 to the limit
+     * @throws GcfException if the input is not valid
+     */
+    void parse(final ByteBuffer input) throws GcfException {
+        this.input = input;
+        final GcfScanner scanner = new GcfScanner(input, this.buffer.symbols());
+        final List<GroupRange> topGroups = scanner.scan();
+
+        for (int i=0; i<=topGroups.size(); i++) {
+            new GcfParser(scanner.outside(i), 2, this.buffer, this.groupChanger).body();
+        }
+
+        final Group root = this.buffer.getGroup("/");
+        root.remember(outsideHash(topGroups), false);
+        this.globalsChanged = this.previous == null || this.previous.sourceHash() != root.sourceHash();
+
+        hash(topGroups);
+        for (GroupRange range : topGroups) {
+            final Group old = (this.previous == null) ? null : this.previous.child(range.name);
+            this.buffer.addTopGroup(group("/", 0, range, old));
+        }
+    }
+
+    /**
+     * Adds a group and its sub groups to the buffer.
+     * As when parsing, sub groups are added after their parent.
+     * @param parent the path of the parent group
+     * @param parentStart the offset of the parent group
+     * @param range the range of the group
+     * @param old the group with the same path of the previous parse, or null
+     * @return the added group
+     */
+    private Group group(final String parent, final int parentStart, final GroupRange range, final Group old) {
+        if (old != null && old.reusable(range.hash, this.globalsChanged)) {
+            return copy(old, parentStart, range);
+        }
+
+        final Group group = new Group(parent, range, this.input, this.buffer, this.groupChanger);
+        group.locate(range, parentStart);
+        this.buffer.addGroup(group);
+        group.loaded();
+        group.remember(range.hash, range.globals);
+        for (GroupRange child : range.children) {
+            group(group.getPath(), range.start, child, (old == null) ? null : old.child(child.name));
+        }
+        return group;
+    }
+
+    /**
+     * Copies a group of the previous parse and its sub groups into the buffer.
+     * The content hash is copied as well, so comparing the old and the 
+     * new content skips the copied groups.
+     * Since the bytes are the same, the sub groups of the range are 
+     * the sub groups of the group to copy, in the same order.
+     * @param old the group to copy
+     * @param parentStart the offset of the parent group
+     * @param range the range of the group in the new input
+     * @return the copy
+     */
+    private Group copy(final Group old, final int parentStart, final GroupRange range) {
+        final Group group = new Group(old, this.buffer, this.groupChanger);
+        group.locate(range, parentStart);
+        this.buffer.addGroup(group);
+        for (GroupRange child : range.children) {
+            copy(old.child(child.name), range.start, child);
+        }
+        group.adoptContentHash(old);
+        return group;
+    }
+
+    /**
+     * Hashes the ranges of sibling groups and their sub groups.
+     * Siblings with the same name are merged into one group, which
+     * cannot be told apart from the ranges, so they are never reused.
+     * @param ranges the sibling ranges
+     */
+    private void hash(final List<GroupRange> ranges) {
+        final Set<String> names = new HashSet<>();
+        final Set<String> repeated = new HashSet<>();
+        for (GroupRange range : ranges) {
+            hash(range);
+            if (!names.add(range.name)) repeated.add(range.name);
+        }
+        if (!repeated.isEmpty()) {
+            for (GroupRange range : ranges) {
+                if (repeated.contains(range.name)) range.hash = -1;
+            }
+        }
+    }
+
+    /**
+     * Hashes the bytes of a group range.
+     * The bytes of the sub groups are replaced by their hashes, and
+     * the bytes of the group itself are checked for references to
+     * global keys.
+     * @param range the range
+     */
+    private void hash(final GroupRange range) {
+        hash(range.children);
+
+        final CRC32 crc = new CRC32();
+        final Adler32 adler = new Adler32();
+        final byte[] childHash = new byte[8];
+        int from = range.start;
+        for (GroupRange child : range.children) {
+            range.globals |= update(crc, adler, from, child.start);
+            for (int i=0; i<8; i++) {
+                childHash[i] = (byte) (child.hash >>> (i*8));
+            }
+            crc.update(childHash, 0, 8);
+            adler.update(childHash, 0, 8);
+            from = child.end;
+        }
+        range.globals |= update(crc, adler, from, range.end);
+        range.hash = (crc.getValue() << 32) | adler.getValue();
+    }
+
+    /**
+     * Hashes the bytes outside of the top level groups, i.e. the global keys.
+     * @param topGroups the ranges of the top level groups
+     * @return the hash
+     */
+    private long outsideHash(final List<GroupRange> topGroups) {
+        final CRC32 crc = new CRC32();
+        final Adler32 adler = new Adler32();
+        int from = 0;
+        for (GroupRange range : topGroups) {
+            update(crc, adler, from, range.start);
+            from = range.end;
+        }
+        update(crc, adler, from, this.input.limit());
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    /**
+     * Adds a segment of the input to the checksums.
+     * @param from offset of the segment
+     * @param to offset after the segment
+     * @return true if the segment contains a <code>$</code>, i.e. may reference global keys
+     */
+    private boolean update(final CRC32 crc, final Adler32 adler, final int from, final int to) {
+        final ByteBuffer segment = this.input.duplicate();
+        segment.limit(to).position(from);
+        crc.update(segment);
+        segment.position(from);
+        adler.update(segment);
+
+        for (int i=from; i<to; i++) {
+            if (this.input.get(i) == '$') return true;
+        }
+        return false;
+    }
+}
@@ -21,13 +21,12 @@ import java.util.Objects;
 /**
  * Defines a key-value pair in the configuration file.
  * A key-value in the gcf configuration format is composed
- * of a <code>String</code> (key) and an <code>Object</code> (value).
- * The reason for the value to be an <code>Object</code> is that
- * the value can be a number, a boolean or a string, and we'd
- * like to infer the value's type later in the code, e.g.
+ * of a <code>String</code> (key) and a <code>Value</code>.
+ * The value can be a number, a boolean or a string, its
+ * type is kept with the value, e.g.
  * <pre>
- *     Object value = ...; // some value
- *     if (value instanceof String) {
+ *     Value value = ...; // some value
+ *     if (value.getType() == ValueType.STRING) {
  *         // do something as a string
  *     }
  * </pre>
@@ -41,7 +40,19 @@ final class KeyValue extends Element {
     private String key;
     
     /* The value */
-    private Object value;
+    private Value value;
+    
+    /* The global key referenced by the value, null if the value is a literal */
+    private String global;
+    
+    /* Offset of the key in the input */
+    private int start;
+    
+    /* Offset of the value literal or reference in the input */
+    private int valueStart;
+    
+    /* Offset after the value literal or reference in the input */
+    private int end;
     
     
     /**
@@ -70,7 +81,7 @@ final class KeyValue extends Element {
      * Gets the value of this KeyValue
      * @return the value
      */
-    public Object getValue() {
+    public Value getValue() {
         return this.value;
     }
 
@@ -78,10 +89,44 @@ final class KeyValue extends Element {
      * Sets the value for this KeyValue
      * @param value the new value
      */
-    public void setValue(final Object value) {
+    public void setValue(final Value value) {
         this.value = value;
     }
     
+    /**
+     * Gets the global key referenced by the value.
+     * @return the global key, null if the value is a literal
+     */
+    String global() {
+        return this.global;
+    }
+    
+    /**
+     * Gets the offset of the key in the input.
+     * @return the offset
+     */
+    int start() {
+        return this.start;
+    }
+    
+    /**
+     * Gets the offset of the value in the input, 
+     * including the quotes of a string.
+     * @return the offset
+     */
+    int valueStart() {
+        return this.valueStart;
+    }
+    
+    /**
+     * Gets the offset after the value in the input,
+     * including the quotes of a string.
+     * @return the offset
+     */
+    int end() {
+        return this.end;
+    }
+    
     /**
      * Parses the KeyValue components.
      * Comments are ignored, both above and to the right of the KeyValue.
@@ -90,9 +135,11 @@ final class KeyValue extends Element {
      */
     @Override
     /*package-privat*/ void parse(final Parser parser) throws GcfException {
-        this.key = parser.match(TokenType.KEY);
+        this.start = (int) parser.lookahead.getStart();
+        this.key = parser.matchSymbol(TokenType.KEY);
         parser.match(TokenType.EQUAL_SIGN);
         
+        this.valueStart = (int) parser.lookahead.getStart();
         if (parser.lookahead.getType().equals(TokenType.GLOBAR_VAR_SYMBOL)) {
             globalVar(parser);
         }
@@ -110,8 +157,10 @@ final class KeyValue extends Element {
     private void globalVar(final Parser parser) {
         parser.match(TokenType.GLOBAR_VAR_SYMBOL);
         parser.match(TokenType.GLOBAL_VAR_LBRACE);
-        final String globalKey = parser.match(TokenType.GLOBAL_VAR_NAME);
+        final String globalKey = parser.matchSymbol(TokenType.GLOBAL_VAR_NAME);
         this.value = this.buffer.getGlobalValue(globalKey);
+        this.global = globalKey;
+        this.end = (int) parser.lookahead.getEnd();
         parser.match(TokenType.GLOBAL_VAR_RBRACE);
     }
     
@@ -121,73 +170,42 @@ final class KeyValue extends Element {
      * @param parser reference to the parser
      */
     private void normalValue(final Parser parser) {
-        final String valueStr = parser.match(TokenType.VALUE);
-        this.value = parseValue(valueStr,parser.lookahead.getLineNumber());
+        // the token of a string covers the text inbetween the quotes
+        final boolean quoted = parser.lookahead.getType() == TokenType.STRING;
+        this.end = (int) parser.lookahead.getEnd() + (quoted ? 1 : 0);
+        this.valueStart -= quoted ? 1 : 0;
+        this.value = matchValue(parser);
     }
     
     /**
-     * Parses the value of this KeyValue into an Object.
-     * @param tok reference to the file stream tokener
-     * @param strValue the value of this KeyValue as a string
-     * @return the parsed value as an <code>Object</code>
-     * @throws GcfException
+     * Matches a literal value and converts it into a typed value.
+     * The lexer has already classified and converted the literal, 
+     * numbers and booleans are taken from the token bits without
+     * materializing their text. Strings are trimmed.
+     * @param parser reference to the parser
+     * @return the value
+     * @throws GcfException if the lookahead token is not a literal value
      */
-    /*package-privat*/ Object parseValue(final String strValue, final int lineNumber) throws GcfException {
-        Object obj = null;
-        try {
-            obj = Integer.parseInt(strValue);
-        } catch(NumberFormatException ex1) {
-            try {
-                obj = Long.parseLong(strValue);
-            } catch(NumberFormatException ex2) {
-                try {
-                    obj = Double.parseDouble(strValue);
-                } catch(NumberFormatException ex3) {
-                    try {
-                        obj = parseBooleanValue(strValue);
-                    } catch(NumberFormatException ex4) {
-                        if (strValue.length()>0) {
-                            if (!strValue.startsWith("\"") || !strValue.endsWith("\"")) {
-                                throw new GcfException("mal formed string at line "+(lineNumber-1));
-                            }
-                            obj = strValue.substring(1, strValue.length()-1).trim();
-                        }
-                        else {
-                            obj = "";
-                        }
-                    }
-                }
-            }
+    /*package-privat*/ static Value matchValue(final Parser parser) throws GcfException {
+        final Token token = parser.lookahead;
+        final TokenType type = token.getType();
+        if (!type.isValue()) {
+            throw new GcfException("expecting <value>; found \'"+token.getText()+"\'. line "+token.getLineNumber());
         }
-        return obj;
-    }
-    
-    /**
-     * Parses a boolean value.
-     * Parsing a boolean is not as straight forward as it may seems.
-     * One cannot simply use <code>Boolean.parseBoolean</code>, since 
-     * every value that isn't a boolean, e.g. "abc", still would get 
-     * parsed a false. In this however we want an exception to 
-     * be raised.
-     * Therefore this method checks first if the string value in its
-     * lower case form is indeed a boolean and then parses it.
-     * Otherwise it raises an exception.
-     * @param value the string value
-     * @return the parsed boolean value
-     * @throws GcfException 
-     */
-    /*package-privat*/ boolean parseBooleanValue(final String value) throws GcfException {
-        // cannot check for NumberFormatException because every value
-        // that isn't a boolean still gets parsed to false.
-        final String strValue = value.toLowerCase();
-        boolean boolValue = false;
-        if (strValue.equals("true") || strValue.equals("false")) {
-            boolValue = Boolean.parseBoolean(strValue);
+        
+        if (type == TokenType.STRING) {
+            return Value.of(parser.matchText(type).trim());
         }
-        else {
-            throw new NumberFormatException(value + " cannot be parsed as boolean");
+        
+        // the slot is reused once consumed, so read the bits first
+        final long bits = token.getBits();
+        parser.match(type);
+        switch(type) {
+            case INT:    return Value.of((int) bits);
+            case LONG:   return Value.of(bits);
+            case DOUBLE: return Value.of(Double.longBitsToDouble(bits));
+            default:     return Value.of(bits != 0);
         }
-        return boolValue;
     }
 
     @Override
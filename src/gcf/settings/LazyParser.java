@@ -0,0 +1,82 @@
+/*
+  Settings 
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Builds the groups of a gcf input without parsing their keys.
+ * The <code>GcfScanner</code> records the range and nesting of every 
+ * group, the global keys are parsed right away since any group may 
+ * reference them, wherever they are declared between the groups. Every group is then created from its range and 
+ * parses its keys only when they are accessed for the first time.
+ */
+final class LazyParser {
+    
+    /* Reference to the main data buffer */
+    private final Buffer buffer;
+    
+    /* Reference to the groupchanger utility class */
+    private final GroupChanger groupChanger;
+
+    /**
+     * Create a lazy parser.
+     * @param buffer        reference to the main data buffer
+     * @param groupChanger  reference to the groupchanger utility class
+     */
+    LazyParser(final Buffer buffer, final GroupChanger groupChanger) {
+        this.buffer = buffer;
+        this.groupChanger = groupChanger;
+    }
+    
+    /**
+     * Scans the input and adds a group for every group range to the buffer.
+     * @param input the input bytes, from position 0 to the limit
+     * @throws GcfException if the group structure or the global keys are not valid
+     */
+    void parse(final ByteBuffer input) throws GcfException {
+        final GcfScanner scanner = new GcfScanner(input, this.buffer.symbols());
+        final List<GroupRange> topGroups = scanner.scan();
+        
+        for (int i=0; i<=topGroups.size(); i++) {
+            new GcfParser(scanner.outside(i), 2, this.buffer, this.groupChanger).body();
+            if (i < topGroups.size()) {
+                this.buffer.addTopGroup(group("/", 0, topGroups.get(i), input));
+            }
+        }
+    }
+    
+    /**
+     * Creates a group and its sub groups and adds them to the buffer.
+     * As when parsing, sub groups are added after their parent.
+     * @param parent the path of the parent group
+     * @param parentStart the offset of the parent group
+     * @param range the range of the group
+     * @param input the input bytes
+     * @return the created group
+     */
+    private Group group(final String parent, final int parentStart, final GroupRange range, final ByteBuffer input) {
+        final Group group = new Group(parent, range, input, this.buffer, this.groupChanger);
+        group.locate(range, parentStart);
+        this.buffer.addGroup(group);
+        for (GroupRange child : range.children) {
+            group(group.getPath(), range.start, child, input);
+        }
+        return group;
+    }
+}
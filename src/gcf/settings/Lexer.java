@@ -16,11 +16,16 @@
 */
 package gcf.settings;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Lexer abstract class.
@@ -28,19 +33,50 @@ import java.io.IOException;
  * a stream of tokens.
  * It offers an abstract method <code>nextToken</code>, that shall
  * be implemented in the implementation class and offers an enumeration 
- * style of retrieving tokens.
+ * style of retrieving tokens. Tokens only record the offsets of their 
+ * text in the input, the text itself is materialized on request.<br>
+ * The input is either the memory-mapped content of a file or a 
+ * fixed-size window that is refilled from a channel as the lexer 
+ * advances, so that streamed input is processed with constant memory.
+ * The lexer scans the bytes directly; since the gcf syntax is plain ASCII, 
+ * a multi-byte UTF-8 sequence is only decoded when it is encountered, 
+ * which in practice is inside quoted string values.
  */
 abstract class Lexer {
     
     /* Character denoting the end of file (as defined in java.io) */
    final char EOF = (char)-1;
     
-    /* The text input to be splitted into tokens */
-    private final String input;
+    /* Size of the window used for streamed input */
+    static final int WINDOW_SIZE = 64 * 1024;
     
-    /* Current character pointer into the input text */
+    /* The input bytes to be splitted into tokens, mapped or a window of the stream */
+    private ByteBuffer input;
+    
+    /* The channel refilling the window, null if the whole input is mapped */
+    private final ReadableByteChannel channel;
+    
+    /* Absolute input offset of the first byte in the window */
+    private long base = 0;
+    
+    /* Absolute input offset before which no token is referenced any more */
+    private long released = 0;
+    
+    /* Index of the first byte of the current character */
+    private int charIndex = 0;
+    
+    /* Index of the next byte to be read from the input */
     private int p = 0;
     
+    /* Scratch bytes to materialize text from a buffer without backing array */
+    private byte[] scratch = new byte[64];
+    
+    /* Table interning the identifiers */
+    private final SymbolTable symbols;
+    
+    /* Low surrogate still to be returned after a supplementary character, 0 if none */
+    private char pendingLowSurrogate = 0;
+    
     /* Current character in the input text */
     char c;
     
@@ -49,31 +85,126 @@ abstract class Lexer {
     /**
      * Construct a lexer
      * @param file the file to be read
+     * @param symbols table interning the identifiers
+     */
+    Lexer(final File file, final SymbolTable symbols) {
+        this(map(file), 0, -1, 1, symbols);
+    }
+    
+    /**
+     * Construct a lexer over a range of an input that is already in memory,
+     * e.g. a single group of a mapped file.
+     * The offsets of the tokens are the offsets into the whole input.
+     * @param input the input bytes
+     * @param from offset of the first byte to be read
+     * @param to offset after the last byte to be read, -1 for the limit of the input
+     * @param lineNumber the line number at the first byte
+     * @param symbols table interning the identifiers
+     */
+    Lexer(final ByteBuffer input, final int from, final int to, final int lineNumber, final SymbolTable symbols) {
+        this.input = input.duplicate();
+        if (to >= 0) this.input.limit(to);
+        this.channel = null;
+        this.symbols = symbols;
+        this.p = from;
+        this.released = from;
+        this.lineNumber = lineNumber;
+        c = nextChar();
+    }
+    
+    /**
+     * Construct a lexer reading from a channel.
+     * The channel is read to its end but not closed.
+     * @param channel the channel to be read
+     * @param symbols table interning the identifiers
      */
-    Lexer(final File file) {
-        this.input = readFileContent(file);
-        c = input.charAt(p);
+    Lexer(final ReadableByteChannel channel, final SymbolTable symbols) {
+        this.input = ByteBuffer.allocate(WINDOW_SIZE);
+        this.input.limit(0);
+        this.channel = channel;
+        this.symbols = symbols;
         lineNumber = 1;
+        c = nextChar();
     }
     
     /**
-     * Reads the file content.
-     * It keeps the newline characters.
+     * Maps the file content into memory.
+     * The mapping stays valid after the channel has been closed.
+     * Files larger than 2GB cannot be mapped into a single buffer.
      * @param file the file to be processed
-     * @return file content as a string
+     * @return read-only buffer over the file content
      */
-    private String readFileContent(final File file) throws GcfException {
-        final StringBuilder sb = new StringBuilder();
-        try(final BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            while(reader.ready()) {
-                sb.append(reader.readLine()).append("\n");
+    static ByteBuffer map(final File file) throws GcfException {
+        try(final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new GcfException("file too large to be mapped: "+file.getAbsolutePath());
             }
-        } catch(FileNotFoundException ex) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch(NoSuchFileException ex) {
             throw new GcfException("cannot find file to read: "+file.getAbsolutePath());
         } catch(IOException ex) {
             throw new GcfException("IO problem occurred while reading "+file.getAbsolutePath());
         }
-        return sb.toString();
+    }
+    
+    /**
+     * Reads the file content into memory.
+     * Unlike a mapping, the content read stays the same when 
+     * the file is changed or replaced afterwards.
+     * @param file the file to be read
+     * @return the file content, from position 0 to the limit
+     * @throws GcfException if the file cannot be read
+     */
+    static ByteBuffer read(final File file) throws GcfException {
+        try(final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new GcfException("file too large to be read: "+file.getAbsolutePath());
+            }
+            final ByteBuffer content = ByteBuffer.allocate((int) size);
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // read until full or the file got shorter meanwhile
+            }
+            content.flip();
+            return content;
+        } catch(NoSuchFileException ex) {
+            throw new GcfException("cannot find file to read: "+file.getAbsolutePath());
+        } catch(IOException ex) {
+            throw new GcfException("IO problem occurred while reading "+file.getAbsolutePath());
+        }
+    }
+    
+    /**
+     * Releases a mapping at once, instead of when the buffer is
+     * garbage collected, so that the file can be replaced or deleted.
+     * The buffer must not be used afterwards, by no one.
+     * If the mapping cannot be released, it is left to the garbage collector.
+     * @param mapped the buffer returned by <code>map</code>
+     */
+    static void unmap(final ByteBuffer mapped) {
+        if (!mapped.isDirect()) {
+            return;
+        }
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), mapped);
+            } catch(NoSuchMethodException ex) {
+                // before Java 9 the buffer has a cleaner of its own
+                final Method cleanerOf = mapped.getClass().getMethod("cleaner");
+                cleanerOf.setAccessible(true);
+                final Object cleaner = cleanerOf.invoke(mapped);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch(ReflectiveOperationException | RuntimeException ex) {
+            // left to the garbage collector
+        }
     }
     
     /**
@@ -95,17 +226,167 @@ abstract class Lexer {
      */
     void consume() {
         if (c=='\n') lineNumber++;
-        p++;
-        if (p >= input.length()) c = EOF;
-        else c = input.charAt(p);
+        c = nextChar();
+    }
+    
+    /**
+     * Gets the absolute input offset of the current character.
+     * @return the offset of the current character
+     */
+    long position() {
+        return base + charIndex;
+    }
+    
+    /**
+     * Signals that no token before the given offset is referenced any more.
+     * Streamed input may discard those bytes on its next refill.
+     * @param offset absolute input offset
+     */
+    void release(final long offset) {
+        this.released = offset;
+    }
+    
+    /**
+     * Materializes the text between two absolute input offsets.
+     * The range must not have been released.
+     * @param start offset of the first byte
+     * @param end offset after the last byte
+     * @return the decoded text
+     */
+    String text(final long start, final long end) {
+        final int from = (int)(start - base);
+        final int length = (int)(end - start);
+        if (input.hasArray()) {
+            return new String(input.array(), input.arrayOffset() + from, length, StandardCharsets.UTF_8);
+        }
+        
+        if (scratch.length < length) scratch = new byte[Math.max(length, 2 * scratch.length)];
+        for(int i=0; i<length; i++) {
+            scratch[i] = input.get(from + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Gets the interned identifier between two absolute input offsets.
+     * No string is created if the identifier has been seen before.
+     * The range must not have been released.
+     * @param start offset of the first byte
+     * @param end offset after the last byte
+     * @return the interned identifier
+     */
+    String symbol(final long start, final long end) {
+        return symbols.intern(input, (int)(start - base), (int)(end - start));
+    }
+    
+    /**
+     * Compares the text between two absolute input offsets with a string,
+     * without materializing it as long as the text is ASCII.
+     * @param start offset of the first byte
+     * @param end offset after the last byte
+     * @param text the string to compare with
+     * @return true if the text equals the string
+     */
+    boolean textEquals(final long start, final long end, final String text) {
+        final int from = (int)(start - base);
+        final int length = (int)(end - start);
+        for(int i=0; i<length; i++) {
+            final byte b = input.get(from + i);
+            if (b < 0) return text(start, end).equals(text);
+            if (i >= text.length() || b != text.charAt(i)) return false;
+        }
+        return length == text.length();
+    }
+    
+    /**
+     * Reads the next character from the input bytes.
+     * ASCII bytes are returned as they are. Multi-byte UTF-8 
+     * sequences are decoded, characters outside the basic 
+     * multilingual plane are returned as two surrogate chars.
+     * @return the next character or EOF if the input is exhausted
+     */
+    private char nextChar() {
+        if (pendingLowSurrogate != 0) {
+            final char low = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+            return low;
+        }
+        charIndex = p;
+        final int b = nextByte();
+        if (b < 0) return EOF;
+        if (b < 0x80) return (char)b;
+        
+        final int length;
+        int codePoint;
+        if      ((b & 0xE0) == 0xC0) { length = 1; codePoint = b & 0x1F; }
+        else if ((b & 0xF0) == 0xE0) { length = 2; codePoint = b & 0x0F; }
+        else if ((b & 0xF8) == 0xF0) { length = 3; codePoint = b & 0x07; }
+        else throw new GcfException("malformed UTF-8 input at line "+lineNumber);
+        
+        for(int i=0; i<length; i++) {
+            final int next = nextByte();
+            if ((next & 0xC0) != 0x80) {
+                throw new GcfException("malformed UTF-8 input at line "+lineNumber);
+            }
+            codePoint = (codePoint << 6) | (next & 0x3F);
+        }
+        
+        if (Character.isBmpCodePoint(codePoint)) return (char)codePoint;
+        pendingLowSurrogate = Character.lowSurrogate(codePoint);
+        return Character.highSurrogate(codePoint);
+    }
+    
+    /**
+     * Reads the next byte from the input, refilling the window if needed.
+     * @return the unsigned byte value or -1 if the input is exhausted
+     */
+    private int nextByte() {
+        if (p >= input.limit() && !fill()) return -1;
+        return input.get(p++) & 0xFF;
+    }
+    
+    /**
+     * Refills the window from the channel.
+     * The bytes before the released offset are discarded to make room.
+     * Should a live token span the whole window, the window is enlarged.
+     * @return true if new bytes were read, false at the end of the input
+     */
+    private boolean fill() {
+        if (channel == null) return false;
+        
+        final int keep = (int)Math.min(released - base, charIndex);
+        if (keep > 0 || input.limit() < input.capacity()) {
+            input.position(keep);
+            input.compact();
+        }
+        else {
+            final ByteBuffer larger = ByteBuffer.allocate(2 * input.capacity());
+            input.position(0);
+            larger.put(input);
+            input = larger;
+        }
+        base += keep;
+        charIndex -= keep;
+        p -= keep;
+        try {
+            int n = 0;
+            while(n == 0 && input.hasRemaining()) {
+                n = channel.read(input);
+            }
+            return n > 0;
+        } catch(IOException ex) {
+            throw new GcfException("IO problem occurred while reading input at line "+lineNumber);
+        } finally {
+            input.flip();
+        }
     }
     
     /**
-     * Gets the next token in the input text.
+     * Reads the next token in the input text into the given token slot.
      * This method shall be implemented in the 
      * implementation class.
      * It facilitates an enumeration style processing of tokens.
-     * @return the next token
+     * @param token the token slot to be filled
      */
-    abstract Token nextToken();
+    abstract void nextToken(final Token token);
 }
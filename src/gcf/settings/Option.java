@@ -0,0 +1,103 @@
+/*
+  Settings 
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+/**
+ * Options changing how a <code>Settings</code> instance 
+ * loads and handles its configuration file, e.g.
+ * <blockquote>
+ * <pre>
+ *     final Settings set = new Settings(someFile, Option.PARALLEL);
+ * </pre>
+ * </blockquote>
+ */
+public enum Option {
+    
+    /**
+     * Parses the top level groups in parallel.
+     * The group boundaries are pre-scanned, the global keys are 
+     * parsed first and then every top level group is parsed on 
+     * the common fork/join pool. Worth it for files with many 
+     * large top level groups.
+     */
+    PARALLEL,
+    
+    /**
+     * Parses the keys of a group only when they are accessed for 
+     * the first time. On load only the group boundaries are scanned 
+     * and the global keys are parsed, so the load time is proportional 
+     * to what is actually used. Errors in the keys of a group are 
+     * reported when the group is first accessed.
+     * Takes precedence over <code>PARALLEL</code>.
+     */
+    LAZY,
+    
+    /**
+     * Watches the file and reloads it when it was changed.
+     * Changes following each other closely are reloaded once.
+     * The saves of the settings themselves are not reloaded.
+     * The file is parsed on a background thread, the new content 
+     * replaces the old one at once, and the registered 
+     * <code>SettingsListener</code>s are notified. If the changed 
+     * file cannot be parsed, the old content is kept; for that 
+     * a reload always parses the whole file, even if <code>LAZY</code> 
+     * is set. Groups obtained before a reload keep the old content.
+     * Only the groups whose text changed are parsed again, the 
+     * others are copied from the old content; <code>PARALLEL</code> 
+     * is then not used.
+     * The file is read into memory instead of being mapped, so 
+     * that it can be changed while lazy groups are not loaded yet.
+     */
+    RELOAD,
+    
+    /**
+     * Keeps a binary snapshot of the parsed groups next to the file, 
+     * named like the file with the additional extension 
+     * <code>.snapshot</code>. As long as the file is not changed, 
+     * the groups are read from the snapshot instead of parsing the 
+     * file; the size, the modification time and a checksum of the 
+     * file are compared to tell. Otherwise the file is parsed and 
+     * the snapshot is written again, which requires all keys to be 
+     * parsed, even if <code>LAZY</code> is set.
+     * Worth it for large files loaded by short-lived processes.
+     */
+    SNAPSHOT,
+    
+    /**
+     * Keeps the comments, the white space and the spelling of the 
+     * values, e.g. references to global keys, when the file is saved.
+     * Every key remembers where it and its value are located in the 
+     * file, so a changed group is saved by replacing the values 
+     * changed, removing the keys and sub groups deleted and inserting 
+     * the keys and sub groups added, everything else is kept.
+     * If only a single value was changed, to a value of the same length, 
+     * the file is saved by overwriting just this value in place.
+     * Takes additional memory per key, and the file is always parsed, 
+     * i.e. <code>SNAPSHOT</code> is not used.
+     */
+    LOSSLESS,
+    
+    /**
+     * Makes <code>save</code> return at once and writes the file in 
+     * the background, as <code>saveAsync</code> does: the saves 
+     * requested within the save delay are written once, with the 
+     * content at that time. Errors are reported as warnings, 
+     * <code>saveAsync</code> tells them to the caller instead.
+     * Closing the settings writes the saves still waiting.
+     */
+    WRITE_BEHIND;
+}
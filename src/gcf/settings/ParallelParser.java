@@ -0,0 +1,118 @@
+/*
+  Settings 
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parses the top level groups of a gcf input in parallel.
+ * Top level groups are independent of each other, they only 
+ * reference the global keys declared before them.
+ * So the input is parsed in three steps:
+ * <ol>
+ * <li>the <code>GcfScanner</code> finds the range of every top level group</li>
+ * <li>the global keys in front of the first group are parsed</li>
+ * <li>every top level group is parsed into a buffer of its own on 
+ *     the common fork/join pool; the buffers are then merged into 
+ *     the main buffer in document order</li>
+ * </ol>
+ * Global keys declared between the groups are parsed once the groups 
+ * in front of them are done, since those must not see them.
+ */
+final class ParallelParser {
+    
+    /* Reference to the main data buffer */
+    private final Buffer buffer;
+    
+    /* Reference to the groupchanger utility class */
+    private final GroupChanger groupChanger;
+
+    /**
+     * Create a parallel parser.
+     * @param buffer        reference to the main data buffer
+     * @param groupChanger  reference to the groupchanger utility class
+     */
+    ParallelParser(final Buffer buffer, final GroupChanger groupChanger) {
+        this.buffer = buffer;
+        this.groupChanger = groupChanger;
+    }
+    
+    /**
+     * Parses the whole input into the main buffer.
+     * @param input the input bytes, from position 0 to the limit
+     * @throws GcfException if the input is not valid
+     */
+    void parse(final ByteBuffer input) throws GcfException {
+        final SymbolTable symbols = this.buffer.symbols();
+        final GcfScanner scanner = new GcfScanner(input, symbols);
+        final List<GroupRange> topGroups = scanner.scan();
+        
+        final List<ForkJoinTask<Buffer>> tasks = new ArrayList<>(topGroups.size());
+        final List<GroupRange> ranges = new ArrayList<>(topGroups.size());
+        for (int i=0; i<=topGroups.size(); i++) {
+            final GcfParser globals = new GcfParser(scanner.outside(i), 2, this.buffer, this.groupChanger);
+            if (!globals.atEnd()) {
+                // the groups in front must neither see these keys nor read them while they are added
+                merge(tasks, ranges);
+                globals.body();
+            }
+            if (i < topGroups.size()) {
+                final GroupRange range = topGroups.get(i);
+                tasks.add(ForkJoinPool.commonPool().submit(() -> parseGroup(input, range)));
+                ranges.add(range);
+            }
+        }
+        merge(tasks, ranges);
+    }
+    
+    /**
+     * Waits for the groups parsed so far and merges them into the main
+     * buffer in document order.
+     * @param tasks the tasks parsing the groups, emptied
+     * @param ranges the ranges of the groups, emptied
+     */
+    private void merge(final List<ForkJoinTask<Buffer>> tasks, final List<GroupRange> ranges) {
+        for (int i=0; i<tasks.size(); i++) {
+            final Buffer part = tasks.get(i).join();
+            final String path = this.buffer.symbols().internPath("/", ranges.get(i).name);
+            final Group group = part.getGroup(path);
+            this.buffer.merge(part);
+            this.buffer.addTopGroup(group);
+        }
+        tasks.clear();
+        ranges.clear();
+    }
+    
+    /**
+     * Parses one top level group into a buffer of its own.
+     * @param input the input bytes
+     * @param range the range of the group
+     * @return the buffer holding the group and all its sub groups
+     */
+    private Buffer parseGroup(final ByteBuffer input, final GroupRange range) {
+        final Buffer part = new Buffer(this.buffer);
+        final Lexer lexer = new GcfLexer(input, range.start, range.end, range.line, this.buffer.symbols());
+        final Parser parser = new Parser(lexer, 2);
+        new Group("/", parser, part, this.groupChanger);
+        parser.match(TokenType.EOF);
+        return part;
+    }
+}
@@ -23,7 +23,7 @@ package gcf.settings;
  * and saving lookahead tokens in a token array.
  * The token buffer saves the lookahead tokens in a circular manner,
  * i.e. the buffer has a fixed size, and once a token has been consumed 
- * it is replaced by the next token from the lexer.
+ * its slot is refilled with the next token from the lexer.
  * This class offers no parsing logic, since it does not use 
  * the match method.
  * The logic for parsing the gcf file syntax shall be implemented 
@@ -55,22 +55,42 @@ class Parser {
         this.lexer = lexer;
         this.bufferSize = bufferSize;
         this.buffer = new Token[bufferSize];
-        for(int i=0; i<bufferSize; i++) this.buffer[i] = lexer.nextToken();
+        for(int i=0; i<bufferSize; i++) {
+            this.buffer[i] = new Token(lexer);
+            lexer.nextToken(this.buffer[i]);
+        }
         p = 0;
         lookahead = this.buffer[p];
     }
 
     /**
      * Consumes a token from the lexer.
-     * By consuming a token, the token at the current lookahead 
-     * index is replaced with the next token from the lexer.
+     * By consuming a token, the slot at the current lookahead 
+     * index is refilled with the next token from the lexer.
      * The lookahead index is moved one place forward.
      * This is done in a circular manner.
      */
     private void consume() {
-        this.buffer[p] = lexer.nextToken();
+        final Token consumed = this.buffer[p];
         p = (p+1) % bufferSize;
         lookahead = this.buffer[p];
+        lexer.release(lookahead.getStart());
+        lexer.nextToken(consumed);
+    }
+    
+    /**
+     * Checkes if the passed token type matches the current lookahead.
+     * If the check is successfull the current lookahead token is consumed,
+     * otherwise an exception is thrown.
+     * @param type token type to be checked
+     */
+    void match(final TokenType type) {
+        if (type.equals(lookahead.getType())) {
+            consume();
+            return;
+        }
+        
+        throw new GcfException("expecting "+type+"; found \'"+lookahead.getText()+"\'. line "+lookahead.getLineNumber());
     }
     
     /**
@@ -78,9 +98,9 @@ class Parser {
      * If the check is successfull the token text (text in the gcf file)
      * is extracted and the current lookahead token is consumed.
      * @param type token type to be checked
-     * @return true if the token types match, false otherwise
+     * @return the token text
      */
-    String match(final TokenType type) {
+    String matchText(final TokenType type) {
         if (type.equals(lookahead.getType())) {
             final String text = lookahead.getText();
             consume();
@@ -90,6 +110,23 @@ class Parser {
         throw new GcfException("expecting "+type+"; found \'"+lookahead.getText()+"\'. line "+lookahead.getLineNumber());
     }
     
+    /**
+     * Checkes if the passed token type matches the current lookahead.
+     * If the check is successfull the token text is interned as an 
+     * identifier and the current lookahead token is consumed.
+     * @param type token type to be checked
+     * @return the interned token text
+     */
+    String matchSymbol(final TokenType type) {
+        if (type.equals(lookahead.getType())) {
+            final String symbol = lookahead.getSymbol();
+            consume();
+            return symbol;
+        }
+        
+        throw new GcfException("expecting "+type+"; found \'"+lookahead.getText()+"\'. line "+lookahead.getLineNumber());
+    }
+    
     /**
      * Retrieves a lookahead token for a specific index.
      * The index shall be at maximum bufferSize.
@@ -0,0 +1,253 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A minimal perfect hash function over a fixed set of strings.
+ * The strings are mapped to the slots 0 to n-1 without any collision,
+ * so a table built with it is an array of exactly n entries and a
+ * lookup is one probe, followed by a single comparison to tell
+ * strings that are not in the set apart.<br>
+ * The function is built with the "hash and displace" method: the
+ * strings are distributed over buckets by a first hash, then,
+ * starting with the largest bucket, a displacement is searched for
+ * every bucket that moves all its strings to free slots. Buckets
+ * with a single string take any free slot directly, the slot is
+ * stored as a negative displacement.<br>
+ * The strings must have distinct hashes. The cached String.hashCode
+ * is used if it is unique within the set, a seeded 64 bit hash of all
+ * characters otherwise, with another seed if even that is not unique.<br>
+ * The instance is immutable.
+ */
+final class PerfectHash {
+
+    /* Function for an empty set */
+    static final PerfectHash EMPTY = new PerfectHash(0, new int[1], false, 0);
+
+    /* Average number of strings per bucket */
+    private static final int BUCKET_SIZE = 4;
+
+    /* Maximum number of displacements tried for one bucket */
+    private static final int MAX_TRIES = 1 << 20;
+
+    /* Maximum number of seeds tried for the full hash */
+    private static final int MAX_SEEDS = 8;
+
+    /* The number of slots, i.e. of strings */
+    private final int size;
+
+    /* Displacement per bucket, or -slot-1 for buckets with a single string */
+    private final int[] displacements;
+
+    /* True if String.hashCode is not unique within the set */
+    private final boolean fullHash;
+
+    /* The seed of the full hash */
+    private final long seed;
+
+    private PerfectHash(final int size, final int[] displacements, final boolean fullHash, final long seed) {
+        this.size = size;
+        this.displacements = displacements;
+        this.fullHash = fullHash;
+        this.seed = seed;
+    }
+
+    /**
+     * Builds the function for a set of distinct strings.
+     * @param keys the strings
+     * @return the function
+     * @throws GcfException if a string is in the set twice, 
+     *         or no displacement could be found
+     */
+    static PerfectHash build(final String[] keys) throws GcfException {
+        final int n = keys.length;
+        if (n == 0) {
+            return EMPTY;
+        }
+
+        // the cached String.hashCode is used, unless two strings share it
+        final long[] hashes = new long[n];
+        for (int i=0; i<n; i++) {
+            hashes[i] = keys[i].hashCode();
+        }
+        boolean fullHash = !distinct(hashes);
+        for (int attempt=0; attempt<MAX_SEEDS; attempt++) {
+            final long seed = attempt * 0x9e3779b97f4a7c15L;
+            if (fullHash) {
+                for (int i=0; i<n; i++) {
+                    hashes[i] = fullHash(keys[i], seed);
+                }
+                if (!distinct(hashes)) {
+                    checkDistinct(keys);
+                    continue;
+                }
+            }
+            final int[] displacements = displacements(hashes);
+            if (displacements != null) {
+                return new PerfectHash(n, displacements, fullHash, seed);
+            }
+            fullHash = true;
+        }
+        throw new GcfException("no perfect hash found for "+n+" keys");
+    }
+
+    /**
+     * Checks that the hashes are distinct.
+     */
+    private static boolean distinct(final long[] hashes) {
+        final long[] sorted = hashes.clone();
+        Arrays.sort(sorted);
+        for (int i=1; i<sorted.length; i++) {
+            if (sorted[i] == sorted[i-1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that no string is in the set twice.
+     * @throws GcfException for the first string found twice
+     */
+    private static void checkDistinct(final String[] keys) throws GcfException {
+        final Set<String> seen = new HashSet<>();
+        for (String key : keys) {
+            if (!seen.add(key)) {
+                throw new GcfException("no perfect hash for \""+key+"\", which is in the set twice");
+            }
+        }
+    }
+
+    /**
+     * Searches the displacements for distinct hashes.
+     * @param hashes the hashes of the strings
+     * @return the displacements, null if none were found for a bucket
+     */
+    private static int[] displacements(final long[] hashes) {
+        final int n = hashes.length;
+        final int bucketCount = (n + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        final List<List<Integer>> buckets = new ArrayList<>(bucketCount);
+        for (int b=0; b<bucketCount; b++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (int i=0; i<n; i++) {
+            buckets.get(bucket(hashes[i], bucketCount)).add(i);
+        }
+        final Integer[] order = new Integer[bucketCount];
+        for (int b=0; b<bucketCount; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+
+        final int[] displacements = new int[bucketCount];
+        final boolean[] taken = new boolean[n];
+        final int[] slots = new int[BUCKET_SIZE * 8];
+        int free = 0;
+        for (Integer b : order) {
+            final List<Integer> bucket = buckets.get(b);
+            if (bucket.size() > 1) {
+                displacements[b] = displace(bucket, hashes, taken, n, slots);
+                if (displacements[b] < 0) {
+                    return null;
+                }
+            }
+            else if (bucket.size() == 1) {
+                while (taken[free]) free++;
+                taken[free] = true;
+                displacements[b] = -free-1;
+            }
+        }
+        return displacements;
+    }
+
+    /**
+     * Searches the displacement that moves all strings of a bucket
+     * to distinct free slots, and takes those slots.
+     * @return the displacement, -1 if there is none
+     */
+    private static int displace(final List<Integer> bucket, final long[] hashes, final boolean[] taken,
+                                final int n, final int[] slots) {
+        final int[] bucketSlots = (bucket.size() <= slots.length) ? slots : new int[bucket.size()];
+        search:
+        for (int d=0; d<MAX_TRIES; d++) {
+            for (int k=0; k<bucket.size(); k++) {
+                final int slot = slot(hashes[bucket.get(k)], d, n);
+                if (taken[slot]) continue search;
+                for (int j=0; j<k; j++) {
+                    if (bucketSlots[j] == slot) continue search;
+                }
+                bucketSlots[k] = slot;
+            }
+            for (int k=0; k<bucket.size(); k++) {
+                taken[bucketSlots[k]] = true;
+            }
+            return d;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the slot of a string.
+     * Strings that are not part of the set get an arbitrary slot,
+     * so the caller has to compare the string in the slot.
+     * @param key the string
+     * @return the slot, -1 if the set is empty
+     */
+    int slot(final String key) {
+        if (this.size == 0) {
+            return -1;
+        }
+
+        final long hash = this.fullHash ? fullHash(key, this.seed) : key.hashCode();
+        final int d = this.displacements[bucket(hash, this.displacements.length)];
+        return (d < 0) ? -d-1 : slot(hash, d, this.size);
+    }
+
+    private static int bucket(final long hash, final int bucketCount) {
+        return reduce(Value.mix64(hash), bucketCount);
+    }
+
+    private static int slot(final long hash, final int displacement, final int n) {
+        return reduce(Value.mix64(hash + (displacement+1) * 0x9e3779b97f4a7c15L), n);
+    }
+
+    /**
+     * Maps the upper half of a hash to the range 0 to n-1 by a 
+     * multiplication instead of the slower remainder.
+     */
+    private static int reduce(final long hash, final int n) {
+        return (int) (((hash >>> 32) * n) >>> 32);
+    }
+
+    /**
+     * Hashes all characters of a string, for sets in which
+     * String.hashCode is not unique.
+     */
+    private static long fullHash(final String key, final long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i=0; i<key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        return Value.mix64(h ^ key.length());
+    }
+}
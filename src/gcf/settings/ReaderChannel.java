@@ -0,0 +1,120 @@
+/*
+  Settings 
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Adapts a character <code>Reader</code> to a byte channel.
+ * The characters are encoded as UTF-8 through a fixed-size 
+ * character buffer, so that the lexer can process a reader 
+ * the same way it processes any other byte input.
+ */
+final class ReaderChannel implements ReadableByteChannel {
+    
+    /* The wrapped reader */
+    private final Reader reader;
+    
+    /* Characters read but not yet encoded */
+    private final CharBuffer chars = CharBuffer.allocate(8192);
+    
+    /* Bytes encoded but not yet handed out */
+    private final ByteBuffer bytes = ByteBuffer.allocate(4 * 8192);
+    
+    /* Encoder turning the characters into UTF-8 */
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    
+    /* Flag when the reader has been read to its end */
+    private boolean endOfInput = false;
+    
+    /* Flag when the encoder has been flushed */
+    private boolean flushed = false;
+    
+    /* Flag when the channel is open */
+    private boolean open = true;
+
+    /**
+     * Creates a channel over a reader.
+     * @param reader the reader to be adapted
+     */
+    ReaderChannel(final Reader reader) {
+        this.reader = reader;
+        this.chars.flip();
+        this.bytes.flip();
+    }
+
+    /**
+     * Reads encoded bytes into the destination buffer.
+     * @param dst the destination buffer
+     * @return the number of bytes read, -1 at the end of the input
+     * @throws IOException if the reader fails
+     */
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        if (!bytes.hasRemaining() && !encode()) return -1;
+        
+        final int n = Math.min(dst.remaining(), bytes.remaining());
+        for(int i=0; i<n; i++) {
+            dst.put(bytes.get());
+        }
+        return n;
+    }
+    
+    /**
+     * Encodes the next characters of the reader into the byte buffer.
+     * @return true if bytes were encoded, false at the end of the input
+     * @throws IOException if the reader fails
+     */
+    private boolean encode() throws IOException {
+        bytes.clear();
+        while(bytes.position() == 0 && !flushed) {
+            // an underflow leaves at most a lone high surrogate behind
+            if (!endOfInput && chars.remaining() < 2) {
+                chars.compact();
+                final int n = reader.read(chars);
+                chars.flip();
+                if (n < 0) endOfInput = true;
+            }
+            
+            encoder.encode(chars, bytes, endOfInput);
+            if (endOfInput && encoder.flush(bytes).isUnderflow()) flushed = true;
+        }
+        bytes.flip();
+        return bytes.hasRemaining();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.open = false;
+        this.reader.close();
+    }
+}
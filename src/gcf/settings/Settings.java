@@ -17,9 +17,25 @@
 package gcf.settings;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Main class to handle gcf-configutation files.<br>
@@ -109,34 +125,95 @@ import java.util.Objects;
  *    set.save();
  * </pre>
  * </blockquote>
+ * 
+ * A Settings instance can be shared between threads. Groups can be 
+ * read, and keys and subgroups added, changed or deleted, from any 
+ * thread; a relative group path always starts at the group it is 
+ * passed to.
  */
-public class Settings {
+public class Settings implements AutoCloseable {
 
-    /* The source file to be parsed */
+    /* The source file to be parsed, null if the content was streamed */
     private final File file;
     
     /* The allowed config file extensions */
     private final String[] FILE_EXTENSIONS = {"gcf","Gcf","GCF"};
     
-    /* The data buffer with all group information */
-    private final Buffer buffer;
+    /* Table interning keys, group names and paths */
+    private final SymbolTable symbols = new SymbolTable();
+    
+    /* The data buffer with all group information, replaced as a whole on reload */
+    private volatile Buffer buffer;
+    
+    /* The options this instance was created with */
+    private final EnumSet<Option> options = EnumSet.noneOf(Option.class);
+    
+    /* The listeners notified after a reload */
+    private final List<SettingsListener> listeners = new CopyOnWriteArrayList<>();
     
-    /* Help class to change groups */
-    private final GroupChanger groupChanger;
+    /* Watches the file for changes, null if not reloading */
+    private final FileWatcher watcher;
+    
+    /* The file as last saved by these settings, null if not saved yet */
+    private BasicFileAttributes saved;
+    
+    /* Saves the file in the background, null if the content was streamed */
+    private final WriteBehind writeBehind;
     
     /**
      * Creates a <code>Settings</code> instance from the absolute 
      * path of the config file.
      * @param absFilePath the absolute file of the config file
+     * @param options options changing how the file is handled
      */
-    public Settings(final String absFilePath) {
+    public Settings(final String absFilePath, final Option... options) {
         Objects.requireNonNull(absFilePath, "file object is null");
         checkFileEnding(absFilePath);
         this.file = new File(absFilePath);
-        this.buffer = new Buffer();
-        this.groupChanger = new GroupChanger(this.buffer);
+        this.options.addAll(Arrays.asList(options));
+        this.buffer = load(this.options.contains(Option.LAZY));
+        this.watcher = this.options.contains(Option.RELOAD) ? new FileWatcher(this.file, this::reloadChanged) : null;
+        this.writeBehind = new WriteBehind(() -> saveToFile(this.file), "gcf-writer-"+this.file.getName());
+    }
+    
+    /**
+     * Creates a <code>Settings</code> instance from a byte channel.
+     * The content is expected to be UTF-8 encoded and is lexed 
+     * through a fixed-size window, whatever its length.
+     * The channel is read to its end but not closed.
+     * Since there is no source file, the changes can only be 
+     * saved with <code>saveToFile</code>.
+     * Streamed content is always parsed sequentially.
+     * @param channel the channel to read the config from
+     */
+    public Settings(final ReadableByteChannel channel) {
+        Objects.requireNonNull(channel, "channel is null");
+        this.file = null;
+        this.watcher = null;
+        this.writeBehind = null;
+        this.buffer = new Buffer(this.symbols);
         
-        open();
+        open(this.buffer, new GcfLexer(channel, this.symbols));
+    }
+    
+    /**
+     * Creates a <code>Settings</code> instance from an input stream,
+     * e.g. a classpath resource or a decompressing stream.
+     * The content is expected to be UTF-8 encoded.
+     * The stream is read to its end but not closed.
+     * @param in the stream to read the config from
+     */
+    public Settings(final InputStream in) {
+        this(Channels.newChannel(Objects.requireNonNull(in, "input stream is null")));
+    }
+    
+    /**
+     * Creates a <code>Settings</code> instance from a character reader.
+     * The reader is read to its end but not closed.
+     * @param reader the reader to read the config from
+     */
+    public Settings(final Reader reader) {
+        this(new ReaderChannel(Objects.requireNonNull(reader, "reader is null")));
     }
     
     /**
@@ -158,22 +235,183 @@ public class Settings {
     }
     
     /**
-     * Opens and parses the file content.
-     * The file is parsed with a LL(2) parser.
+     * Parses the file into a new data buffer, as set by the options.
+     * With the option <code>SNAPSHOT</code> the buffer is read from 
+     * the snapshot instead, if it matches the file, and otherwise 
+     * the snapshot is written after parsing.
+     * @param lazy true if the keys are to be parsed when first accessed
+     * @return the filled buffer
      */
-    private void open() {
-        final Lexer lexer = new GcfLexer(this.file);
-        final GcfParser parser = new GcfParser(lexer, 2, this.buffer, this.groupChanger);
+    private Buffer load(final boolean lazy) {
+        // taken before reading, so that a later change is not missed
+        final long modified = this.file.lastModified();
+        final ByteBuffer input = this.options.contains(Option.RELOAD) 
+                               ? Lexer.read(this.file) : Lexer.map(this.file);
+        
+        final boolean lossless = this.options.contains(Option.LOSSLESS);
+        final File snapshot = (this.options.contains(Option.SNAPSHOT) && !lossless) 
+                            ? GcfSnapshot.fileFor(this.file) : null;
+        final long checksum = (snapshot == null) ? 0 : GcfSnapshot.checksum(input);
+        if (snapshot != null) {
+            final Buffer loaded = GcfSnapshot.read(snapshot, input.limit(), modified, checksum, this.symbols);
+            if (loaded != null) {
+                loaded.attachSource(input, this.file, modified);
+                return loaded;
+            }
+        }
+        
+        final Buffer newBuffer = new Buffer(this.symbols);
+        if (lossless) {
+            newBuffer.keepLayout();
+        }
+        if (lazy) {
+            new LazyParser(newBuffer, newBuffer.groupChanger()).parse(input);
+        }
+        else if (this.options.contains(Option.RELOAD)) {
+            new IncrementalParser(newBuffer, newBuffer.groupChanger(), this.buffer).parse(input);
+        }
+        else if (this.options.contains(Option.PARALLEL)) {
+            new ParallelParser(newBuffer, newBuffer.groupChanger()).parse(input);
+        }
+        else {
+            open(newBuffer, new GcfLexer(input, 0, -1, 1, this.symbols));
+        }
+        newBuffer.attachSource(input, this.file, modified);
+        if (snapshot != null) {
+            GcfSnapshot.write(newBuffer, snapshot, input.limit(), modified, checksum);
+        }
+        return newBuffer;
+    }
+    
+    /**
+     * Parses the content delivered by the lexer.
+     * The content is parsed with a LL(2) parser.
+     * @param buffer the buffer to be filled
+     * @param lexer the lexer over the config content
+     */
+    private void open(final Buffer buffer, final Lexer lexer) {
+        final GcfParser parser = new GcfParser(lexer, 2, buffer, buffer.groupChanger());
         parser.body();
     }
     
+    /**
+     * Reads the file again and replaces the current content.
+     * The file is parsed completely before the content is replaced 
+     * at once, so a reader sees either the old or the new content.
+     * Groups obtained before keep the old content, and changes made 
+     * to the old content are lost.
+     * The file is always parsed completely, even with the option 
+     * <code>LAZY</code>, so that errors are found before the old 
+     * content is replaced. With the option <code>RELOAD</code> 
+     * unchanged groups are copied from the old content instead.
+     * The listeners are notified afterwards, with the differences 
+     * between the old and the new content. If the file cannot be 
+     * parsed, the old content is kept.
+     * Called by the file watcher when the option <code>RELOAD</code> 
+     * is set, but can be called at any time.
+     * @throws GcfException if the settings were not read from a file,
+     *         or if the file cannot be read or parsed
+     */
+    public synchronized void reload() throws GcfException {
+        if (this.file == null) {
+            throw new GcfException("settings were not read from a file, cannot reload");
+        }
+        
+        final Buffer old = this.buffer;
+        this.buffer = load(false);
+        if (!this.listeners.isEmpty()) {
+            final List<Difference> differences = Collections.unmodifiableList(
+                    Difference.between(old.getGroup("/"), this.buffer.getGroup("/")));
+            this.listeners.forEach(l -> l.settingsChanged(this, differences));
+        }
+    }
+    
+    /**
+     * Reloads the file after the watcher saw it change, unless the 
+     * change is the last save of these settings. Reloading the own 
+     * save would drop the changes made since.
+     * Since there is no caller to throw to, a failed reload is passed 
+     * to the listeners, or printed as a warning if there are none.
+     */
+    private synchronized void reloadChanged() {
+        final BasicFileAttributes current = attributes(this.file);
+        if (this.saved != null && current != null
+                && current.size() == this.saved.size()
+                && current.lastModifiedTime().equals(this.saved.lastModifiedTime())
+                && Objects.equals(current.fileKey(), this.saved.fileKey())) {
+            return;
+        }
+        try {
+            reload();
+        } catch(GcfException ex) {
+            if (this.listeners.isEmpty()) {
+                GcfWarning.printWarning("reload failed, keeping the old settings: "+ex.getMessage());
+            }
+            this.listeners.forEach(l -> l.reloadFailed(this, ex));
+        }
+    }
+    
+    /**
+     * Gets the size, time and identity of a file.
+     * @param file the file
+     * @return the attributes, null if they cannot be read
+     */
+    private static BasicFileAttributes attributes(final File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch(IOException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Registers a listener notified after every reload.
+     * @param listener the listener
+     */
+    public void addListener(final SettingsListener listener) {
+        this.listeners.add(Objects.requireNonNull(listener, "listener is null"));
+    }
+    
+    /**
+     * Removes a registered listener.
+     * @param listener the listener
+     */
+    public void removeListener(final SettingsListener listener) {
+        this.listeners.remove(listener);
+    }
+    
+    /**
+     * Stops watching the file, if the option <code>RELOAD</code> is set,
+     * and writes the saves requested with <code>saveAsync</code>, waiting
+     * until they are done. Later saves are written at once.
+     */
+    @Override
+    public void close() {
+        if (this.watcher != null) {
+            this.watcher.close();
+        }
+        if (this.writeBehind != null) {
+            this.writeBehind.close();
+        }
+    }
+    
     /**
      * Gets a group by its name or full path.
      * @param absGroupPath the absolute path of the group requested
      * @return the group requested with respect to the absolute path
      */
     public Group getGroup(final String absGroupPath) {
-        return this.groupChanger.changeGroup(absGroupPath);
+        return this.buffer.groupChanger().changeGroup(absGroupPath);
+    }
+    
+    /**
+     * Gets a group by its parsed path.
+     * @param groupPath the path of the group requested
+     * @return the group requested with respect to the path
+     */
+    public Group getGroup(final GroupPath groupPath) {
+        final Buffer current = this.buffer;
+        return current.groupChanger().changeGroup(groupPath, current.getGroup("/"));
     }
     
     /**
@@ -183,20 +421,192 @@ public class Settings {
     public Collection<Group> childGroups() {
         return this.buffer.subGroupsForPath("/");
     }
+    
+    /**
+     * Creates an immutable copy of all groups, for read-only use 
+     * once the settings are set up.
+     * Lookups in the copy take no locks, and keys and groups are 
+     * found with a single probe into arrays indexed by perfect 
+     * hashes, instead of through maps.
+     * Later changes to these settings are not seen by the copy.
+     * @return the frozen settings
+     */
+    public FrozenSettings freeze() {
+        return new FrozenSettings(this.buffer.getGroup("/"));
+    }
+    
+    /**
+     * Finds the differences between these settings and others,
+     * e.g. the settings of two nodes. Groups whose content is the 
+     * same, as told by their <code>contentHash</code>, are skipped,
+     * so only the parts that differ are visited.
+     * @param newer the settings to compare with
+     * @return the changes from these settings to the other ones
+     */
+    public List<Difference> diff(final Settings newer) {
+        return Difference.between(this.buffer.getGroup("/"), newer.buffer.getGroup("/"));
+    }
+    
+    /**
+     * Gets a hash of all keys and groups, see <code>Group.contentHash</code>.
+     * Settings with the same content have the same hash, so e.g. 
+     * two nodes can check by the hash if they run the same settings.
+     * @return the hash
+     */
+    public long contentHash() {
+        return this.buffer.getGroup("/").contentHash();
+    }
+    
+    /**
+     * Publishes the current content into a region file, from which 
+     * other processes on the same host read it in place with 
+     * <code>SharedSettings</code>, replacing an earlier publication.
+     * @param region the region file, created if it does not exist
+     * @throws GcfException if the region cannot be written
+     */
+    public void publish(final File region) throws GcfException {
+        SharedSettings.publish(this.buffer.getGroup("/"), region);
+    }
+    
+    /**
+     * Selects all groups whose path matches a pattern.
+     * The pattern is an absolute group path, whose group names may 
+     * contain wildcards: <code>*</code> matches any characters and 
+     * <code>?</code> a single character within a name, a name 
+     * <code>**</code> matches any number of groups, including none, e.g.
+     * <pre>
+     *     settings.select("/Servers/*&#47;Endpoints/**")
+     * </pre>
+     * selects the Endpoints group of every server and all groups below them.<br>
+     * The groups are searched while the stream is consumed, and only 
+     * the sub groups that can match are visited.
+     * @param pattern the path pattern
+     * @return the matching groups, in the order they appear in the file
+     * @throws GcfException if the pattern is not an absolute path
+     */
+    public Stream<Group> select(final String pattern) throws GcfException {
+        return new GroupQuery(pattern).select(this.buffer.getGroup("/"));
+    }
+
+    /**
+     * Changes keys and groups all at once, or not at all, e.g.
+     * <blockquote>
+     * <pre>
+     *     set.batch(tx -&gt; {
+     *         tx.addGroup("/Servers/S3/");
+     *         tx.addKey("/Servers/S3/", "host", "c");
+     *         tx.deleteGroup("/Servers/S1/");
+     *     });
+     * </pre>
+     * </blockquote>
+     * The changes are staged and checked by the <code>Batch</code>.
+     * If one of them is not valid, or the function throws otherwise, 
+     * none of them is applied and the exception is passed on.
+     * Otherwise they are applied at once: an added group is filled 
+     * before it is linked to its parent, the keys of a changed group 
+     * are changed under one lock, and the listeners are notified once, 
+     * with the differences. With the option <code>WRITE_BEHIND</code> 
+     * one save is requested. If applying fails half way, e.g. since 
+     * another thread deleted a group meanwhile, the groups changed so 
+     * far are put back as they were and the exception is passed on.<br>
+     * Batches, saves and reloads do not overlap, but threads reading 
+     * meanwhile see the changes group by group.
+     * @param changes the function staging the changes
+     */
+    public void batch(final Consumer<Batch> changes) {
+        Objects.requireNonNull(changes, "changes is null");
+        final List<Difference> differences;
+        synchronized (this) {
+            final Batch batch = new Batch(this.buffer);
+            changes.accept(batch);
+            differences = Collections.unmodifiableList(batch.apply());
+        }
+        if (!differences.isEmpty()) {
+            this.listeners.forEach(l -> l.settingsChanged(this, differences));
+        }
+        if (this.file != null && this.options.contains(Option.WRITE_BEHIND)) {
+            save();
+        }
+    }
 
     /**
      * Saves the changes made to file.
+     * With the option <code>WRITE_BEHIND</code> the file is written 
+     * in the background, as by <code>saveAsync</code>, and errors 
+     * are reported as warnings.
+     * @throws GcfException if the settings were not read from a file
      */
     public void save() {
+        if (this.file == null) {
+            throw new GcfException("settings were not read from a file, use saveToFile instead");
+        }
+        if (this.options.contains(Option.WRITE_BEHIND)) {
+            this.writeBehind.request().whenComplete((done, ex) -> {
+                if (ex != null) {
+                    GcfWarning.printWarning("error while saving "+this.file.getAbsolutePath()+": "+ex.getMessage());
+                }
+            });
+            return;
+        }
         saveToFile(this.file);
     }
+    
+    /**
+     * Saves the changes made to file in the background, so that the 
+     * caller does not wait for the file to be written.
+     * The file is written after the save delay, with the content at 
+     * that time, once for all saves requested meanwhile, e.g.
+     * <blockquote>
+     * <pre>
+     *     group.changeValue("port", 81);
+     *     set.saveAsync();                 // returns at once
+     *     group.changeValue("host", "b");
+     *     set.saveAsync().join();          // both changes are on disk
+     * </pre>
+     * </blockquote>
+     * @return completed once the changes made before are written,
+     *         or exceptionally if writing them failed
+     * @throws GcfException if the settings were not read from a file
+     */
+    public CompletableFuture<Void> saveAsync() {
+        if (this.file == null) {
+            throw new GcfException("settings were not read from a file, use saveToFile instead");
+        }
+        return this.writeBehind.request();
+    }
+    
+    /**
+     * Sets the time from the first save requested with <code>saveAsync</code>
+     * to the file being written, 100 milliseconds if not set.
+     * The longer the delay, the more saves are written at once, but 
+     * the longer the changes wait to be written.
+     * @param delay the delay, 0 to write as soon as possible
+     * @param unit the unit of the delay
+     * @throws GcfException if the settings were not read from a file,
+     *         or the delay is negative
+     */
+    public void setSaveDelay(final long delay, final TimeUnit unit) {
+        if (this.file == null) {
+            throw new GcfException("settings were not read from a file, there is nothing to save");
+        }
+        this.writeBehind.delay(delay, unit);
+    }
 
     /**
      * Saves the changes made to a specified file.
+     * Only the groups changed since the file was read or last saved 
+     * are formatted anew, the other groups are copied as they are, 
+     * comments included, so saving a few changes takes time in 
+     * proportion to the changes rather than to the whole file.
+     * If the file was changed by someone else meanwhile, all groups 
+     * are formatted.
      * @param newFile the file to which the changes are to be saved.
      */
-    public void saveToFile(final File newFile) {
+    public synchronized void saveToFile(final File newFile) {
         final GcfWriter gcfWriter = new GcfWriter(newFile,this.buffer);
         gcfWriter.writeFile();
+        if (this.watcher != null && newFile.getAbsoluteFile().equals(this.file.getAbsoluteFile())) {
+            this.saved = attributes(this.file);
+        }
     }
 }
@@ -0,0 +1,66 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.List;
+
+/**
+ * Gets notified when a <code>Settings</code> instance was reloaded, 
+ * or changed by a batch, see <code>Settings.batch</code>, e.g.
+ * <blockquote>
+ * <pre>
+ *     final Settings set = new Settings(someFile, Option.RELOAD);
+ *     set.addListener(s -&gt; System.out.println("reloaded"));
+ * </pre>
+ * </blockquote>
+ * The listeners are called on the thread that reloaded the settings,
+ * or applied the batch.
+ */
+@FunctionalInterface
+public interface SettingsListener {
+
+    /**
+     * Called after the new content has replaced the old one,
+     * or a batch was applied.
+     * @param settings the reloaded settings
+     */
+    void settingsChanged(Settings settings);
+
+    /**
+     * Called after the new content has replaced the old one, or a 
+     * batch was applied, with the differences between before and after.
+     * By default <code>settingsChanged(Settings)</code> is called.
+     * @param settings the reloaded settings
+     * @param differences the changes from the old to the new content
+     */
+    default void settingsChanged(final Settings settings, final List<Difference> differences) {
+        settingsChanged(settings);
+    }
+
+    /**
+     * Called when the file watcher saw the file change, but the 
+     * file could not be parsed. An explicit <code>reload</code> 
+     * throws the exception instead.
+     * The settings keep their old content.
+     * By default a warning is printed.
+     * @param settings the settings that were not reloaded
+     * @param ex the reason
+     */
+    default void reloadFailed(final Settings settings, final GcfException ex) {
+        GcfWarning.printWarning("reload failed, keeping the old settings: "+ex.getMessage());
+    }
+}
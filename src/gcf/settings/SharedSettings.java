@@ -0,0 +1,696 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings shared between processes through a memory mapped file.
+ * One process publishes its settings into the file, any number of
+ * processes on the same host read them in place, without parsing
+ * and without a copy on their heap:
+ * <blockquote>
+ * <pre>
+ *     // publisher, e.g. again after every reload
+ *     final Settings set = new Settings(someFile, Option.RELOAD);
+ *     set.publish(regionFile);
+ *     set.addListener(s -&gt; s.publish(regionFile));
+ *
+ *     // readers
+ *     final SharedSettings shared = SharedSettings.open(regionFile);
+ *     final int port = shared.readInt("/Servers/S1/", "port");
+ * </pre>
+ * </blockquote>
+ * A publication is written next to the current one and then made
+ * current by changing the header, guarded by a sequence number that
+ * is odd while the header is changed. A reader notes the sequence
+ * number, reads, and repeats the read if the number changed meanwhile,
+ * so readers never block and never see a mix of two publications.
+ * New publications are seen by the next read.<br>
+ * An instance can be read from any number of threads.
+ */
+public final class SharedSettings implements AutoCloseable {
+
+    /* Marks a region file, "GCFR" */
+    private static final int MAGIC = 0x47434652;
+
+    /* The version of the format */
+    private static final int VERSION = 1;
+
+    /* Header offsets: magic, version, sequence number, offset and length of the current publication */
+    private static final int MAGIC_AT = 0, VERSION_AT = 4, SEQUENCE_AT = 8, OFFSET_AT = 16, LENGTH_AT = 24;
+
+    /* The size of the header */
+    private static final int HEADER = 64;
+
+    /* Size of a slot of the group table: path hash, path, group */
+    private static final int GROUP_SLOT = 12;
+
+    /* Size of a slot of a key table: key hash, key, type, bits or string */
+    private static final int KEY_SLOT = 20;
+
+    /* Written and read for the memory barriers only, see fence() */
+    private static volatile int barrier;
+
+    /* The region file */
+    private final File file;
+
+    /* The mapping of the region, replaced when the region grew */
+    private volatile ByteBuffer region;
+
+    private SharedSettings(final File file, final ByteBuffer region) {
+        this.file = file;
+        this.region = region;
+    }
+
+    /**
+     * Opens a region file for reading.
+     * @param file the region file written by <code>Settings.publish</code>
+     * @return the shared settings
+     * @throws GcfException if the file is no region file
+     */
+    public static SharedSettings open(final File file) throws GcfException {
+        final ByteBuffer region = map(file);
+        if (region.capacity() < HEADER || region.getInt(MAGIC_AT) != MAGIC) {
+            throw new GcfException(file.getAbsolutePath()+" is no shared settings region");
+        }
+        if (region.getInt(VERSION_AT) != VERSION) {
+            throw new GcfException(file.getAbsolutePath()+" has an unknown version");
+        }
+        return new SharedSettings(file, region);
+    }
+
+    /**
+     * Gets the number of publications so far.
+     * @return the number of publications
+     */
+    public long version() {
+        return this.region.getLong(SEQUENCE_AT) / 2;
+    }
+
+    /**
+     * Checks if a group exists.
+     * @param groupPath the absolute path of the group
+     * @return true if the group exists
+     */
+    public boolean hasGroup(final String groupPath) {
+        final String path = absolute(groupPath);
+        return read((region, base) -> group(region, base, path) != 0);
+    }
+
+    /**
+     * Checks if a group has a key.
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @return true if the key is present
+     * @throws GcfException if there is no such group
+     */
+    public boolean hasKey(final String groupPath, final String key) throws GcfException {
+        final String path = absolute(groupPath);
+        return read((region, base) -> key(region, base, existing(region, base, path), key) != 0);
+    }
+
+    /**
+     * Gets the keys of a group.
+     * @param groupPath the absolute path of the group
+     * @return the keys, in the order of the file
+     * @throws GcfException if there is no such group
+     */
+    public List<String> childKeys(final String groupPath) throws GcfException {
+        final String path = absolute(groupPath);
+        return read((region, base) -> {
+            final int group = existing(region, base, path);
+            final int keySlots = count(region, base + group);
+            final int keyCount = count(region, base + group + 4);
+            final int childCount = count(region, base + group + 8);
+            final int table = group + 12 + 4 * (keyCount + childCount);
+            final List<String> keys = new ArrayList<>();
+            for (int k=0; k<keyCount; k++) {
+                final int slot = region.getInt(base + group + 12 + 4 * k);
+                if (slot < 0 || slot >= keySlots) throw new IndexOutOfBoundsException();
+                keys.add(string(region, base, region.getInt(base + table + slot * KEY_SLOT + 4)));
+            }
+            return keys;
+        });
+    }
+
+    /**
+     * Gets the absolute paths of the sub groups of a group.
+     * The path <code>/</code> gives the top level groups.
+     * @param groupPath the absolute path of the group
+     * @return the paths of the sub groups, in the order of the file
+     * @throws GcfException if there is no such group
+     */
+    public List<String> childGroups(final String groupPath) throws GcfException {
+        final String path = absolute(groupPath);
+        return read((region, base) -> {
+            final int group = existing(region, base, path);
+            final int keyCount = count(region, base + group + 4);
+            final int childCount = count(region, base + group + 8);
+            final List<String> children = new ArrayList<>();
+            for (int c=0; c<childCount; c++) {
+                children.add(string(region, base, region.getInt(base + group + 12 + 4 * (keyCount + c))));
+            }
+            return children;
+        });
+    }
+
+    /**
+     * Reads a value as an int.
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @return the value as an int
+     * @throws GcfException if the key is not present or the value cannot be represented as an int
+     */
+    public int readInt(final String groupPath, final String key) throws GcfException {
+        return value(groupPath, key).asInt();
+    }
+
+    /**
+     * Reads a value as a long.
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @return the value as a long
+     * @throws GcfException if the key is not present or the value is not an integral number
+     */
+    public long readLong(final String groupPath, final String key) throws GcfException {
+        return value(groupPath, key).asLong();
+    }
+
+    /**
+     * Reads a value as a double.
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @return the value as a double
+     * @throws GcfException if the key is not present or the value is not a number
+     */
+    public double readDouble(final String groupPath, final String key) throws GcfException {
+        return value(groupPath, key).asDouble();
+    }
+
+    /**
+     * Reads a value as a string, numbers and booleans as their text.
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @return the value as a string
+     * @throws GcfException if the key is not present
+     */
+    public String readString(final String groupPath, final String key) throws GcfException {
+        return value(groupPath, key).toString();
+    }
+
+    /**
+     * Reads a value as a boolean.
+     * @param groupPath the absolute path of the group
+     * @param key the key
+     * @return the value as a boolean
+     * @throws GcfException if the key is not present or the value is not a boolean
+     */
+    public boolean readBoolean(final String groupPath, final String key) throws GcfException {
+        final Value value = value(groupPath, key);
+        if (value.getType() == ValueType.BOOLEAN || value.getType() == ValueType.STRING) {
+            try {
+                return value.asBoolean();
+            } catch(GcfException ex) {
+                // reported below
+            }
+        }
+
+        throw new GcfException("value for key \""+key+"\" is not a boolean");
+    }
+
+    /**
+     * Drops the mapping of the region.
+     * The mapping is released by the garbage collector.
+     */
+    @Override
+    public void close() {
+        this.region = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Gets the typed value of a key.
+     */
+    private Value value(final String groupPath, final String key) throws GcfException {
+        final String path = absolute(groupPath);
+        return read((region, base) -> {
+            final int slot = key(region, base, existing(region, base, path), key);
+            if (slot == 0) {
+                throw new GcfException("no key \""+key+"\" in group \""+path+"\"");
+            }
+            final ValueType type = ValueType.values()[region.get(base + slot + 8)];
+            final long bits = region.getLong(base + slot + 12);
+            return (type == ValueType.STRING) ? Value.of(string(region, base, (int) bits))
+                                              : Value.of(type, bits, null);
+        });
+    }
+
+    /**
+     * Reads from the current publication.
+     * The read is repeated if a new publication became current
+     * meanwhile; an exception is only passed on if it was not
+     * caused by that.
+     * @param <T>
+     * @param reader the read
+     * @return the result of the read
+     */
+    private <T> T read(final RegionReader<T> reader) {
+        while (true) {
+            final ByteBuffer current = this.region;
+            final long sequence = current.getLong(SEQUENCE_AT);
+            fence();
+            if ((sequence & 1) == 0) {
+                final long offset = current.getLong(OFFSET_AT);
+                final long length = current.getLong(LENGTH_AT);
+                if (offset + length > current.capacity()) {
+                    // published beyond the mapping, or a torn header
+                    fence();
+                    if (current.getLong(SEQUENCE_AT) == sequence) {
+                        remap(current);
+                    }
+                    continue;
+                }
+
+                T result = null;
+                RuntimeException failure = null;
+                try {
+                    if (length == 0) {
+                        throw new GcfException("nothing published in "+this.file.getAbsolutePath()+" yet");
+                    }
+                    result = reader.read(current, (int) offset);
+                } catch(RuntimeException ex) {
+                    failure = ex;
+                }
+                fence();
+                if (current.getLong(SEQUENCE_AT) == sequence) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return result;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Maps the region again, after it grew.
+     */
+    private synchronized void remap(final ByteBuffer current) {
+        if (this.region == current) {
+            this.region = map(this.file);
+        }
+    }
+
+    /**
+     * Finds a group that has to exist.
+     * @return the offset of the group record
+     * @throws GcfException if there is no such group
+     */
+    private static int existing(final ByteBuffer region, final int base, final String path) throws GcfException {
+        final int group = group(region, base, path);
+        if (group == 0) {
+            throw new GcfException("group \"" + path + "\" does not exist");
+        }
+        return group;
+    }
+
+    /**
+     * Finds a group by its absolute path.
+     * @return the offset of the group record, 0 if there is none
+     */
+    private static int group(final ByteBuffer region, final int base, final String path) {
+        final int slots = count(region, base);
+        final int hash = path.hashCode();
+        for (int i=0, s=mix(hash) & (slots-1); i<slots; i++, s=(s+1) & (slots-1)) {
+            final int at = base + 8 + s * GROUP_SLOT;
+            final int pathRef = region.getInt(at + 4);
+            if (pathRef == 0) {
+                return 0;
+            }
+            if (region.getInt(at) == hash && matches(region, base + pathRef, path)) {
+                return region.getInt(at + 8);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Finds a key of a group.
+     * @return the offset of the key slot, 0 if there is none
+     */
+    private static int key(final ByteBuffer region, final int base, final int group, final String key) {
+        final int slots = count(region, base + group);
+        if (slots == 0) {
+            return 0;
+        }
+        final int keyCount = count(region, base + group + 4);
+        final int childCount = count(region, base + group + 8);
+        final int table = group + 12 + 4 * (keyCount + childCount);
+        final int hash = key.hashCode();
+        for (int i=0, s=mix(hash) & (slots-1); i<slots; i++, s=(s+1) & (slots-1)) {
+            final int slot = table + s * KEY_SLOT;
+            final int keyRef = region.getInt(base + slot + 4);
+            if (keyRef == 0) {
+                return 0;
+            }
+            if (region.getInt(base + slot) == hash && matches(region, base + keyRef, key)) {
+                return slot;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reads a number of slots or entries.
+     * A publication overwritten while it was read may give any 
+     * number, which must not make the read allocate or loop 
+     * beyond the region.
+     */
+    private static int count(final ByteBuffer region, final int at) {
+        final int count = region.getInt(at);
+        if (count < 0 || count > region.capacity() / 4) {
+            throw new IndexOutOfBoundsException();
+        }
+        return count;
+    }
+
+    /**
+     * Compares a stored string with a string, without decoding
+     * the stored one if it is ASCII.
+     */
+    private static boolean matches(final ByteBuffer region, final int at, final String text) {
+        final int length = region.getInt(at);
+        if (length == text.length()) {
+            for (int i=0; i<length; i++) {
+                if (region.get(at + 4 + i) != text.charAt(i)) return false;
+            }
+            return true;
+        }
+        if (length < text.length()) {
+            return false;
+        }
+
+        final byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length != length) {
+            return false;
+        }
+        for (int i=0; i<length; i++) {
+            if (region.get(at + 4 + i) != utf8[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a stored string.
+     */
+    private static String string(final ByteBuffer region, final int base, final int ref) {
+        final int length = region.getInt(base + ref);
+        if (length < 0 || length > region.capacity() - base - ref) {
+            throw new IndexOutOfBoundsException();
+        }
+        final byte[] utf8 = new byte[length];
+        for (int i=0; i<utf8.length; i++) {
+            utf8[i] = region.get(base + ref + 4 + i);
+        }
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Makes an absolute path with a trailing slash of a group path.
+     */
+    private static String absolute(final String groupPath) {
+        if (groupPath.isEmpty()) {
+            throw new GcfException("trying to access group with empty name not possible!");
+        }
+        return GroupChanger.formatPath(groupPath.startsWith("/") ? groupPath : "/" + groupPath);
+    }
+
+    /**
+     * Publishes a group tree, replacing the current publication.
+     * Publishers in other processes are excluded by a file lock.
+     * @param root the root group
+     * @param file the region file, created if it does not exist
+     * @throws GcfException if the region cannot be written
+     */
+    static synchronized void publish(final Group root, final File file) throws GcfException {
+        final ByteBuffer image = image(root);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.lock();
+            try {
+                publish(channel, image);
+            } finally {
+                lock.release();
+            }
+        } catch(IOException ex) {
+            throw new GcfException("cannot publish to "+file.getAbsolutePath()+": "+ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes an image next to the current publication and switches
+     * the header over to it.
+     * @param channel the channel to the region file, locked
+     * @param image the image to publish
+     * @throws IOException if the region cannot be written
+     */
+    private static void publish(final FileChannel channel, final ByteBuffer image) throws IOException {
+        final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+        if (header.getInt(MAGIC_AT) != MAGIC || header.getInt(VERSION_AT) != VERSION) {
+            header.putLong(SEQUENCE_AT, 0);
+            header.putLong(OFFSET_AT, 0);
+            header.putLong(LENGTH_AT, 0);
+            header.putInt(VERSION_AT, VERSION);
+            header.putInt(MAGIC_AT, MAGIC);
+        }
+
+        // next to the current publication, which may still be read
+        final long offset = header.getLong(OFFSET_AT);
+        final long length = header.getLong(LENGTH_AT);
+        final long at = (length == 0 || HEADER + image.capacity() <= offset)
+                      ? HEADER : (offset + length + 7) & ~7L;
+        final MappedByteBuffer target = channel.map(FileChannel.MapMode.READ_WRITE, at, image.capacity());
+        target.put(image);
+        fence();
+
+        // odd if a publisher died in between, which readers would wait for forever
+        final long sequence = header.getLong(SEQUENCE_AT) & ~1L;
+        header.putLong(SEQUENCE_AT, sequence + 1);
+        fence();
+        header.putLong(OFFSET_AT, at);
+        header.putLong(LENGTH_AT, image.capacity());
+        fence();
+        header.putLong(SEQUENCE_AT, sequence + 2);
+    }
+
+    /**
+     * Lays out a group tree for reading in place.
+     * <pre>
+     *     group slots, group count
+     *     group table  per slot: path hash, path, group record
+     *     per group    key slots, key count, sub group count,
+     *                  the key slots in the order of the file,
+     *                  the paths of the sub groups,
+     *                  key table, per slot: key hash, key, type, bits or string
+     *     strings      per string its UTF-8 length and bytes
+     * </pre>
+     * All references are offsets from the start of the publication,
+     * the tables are open addressed with linear probing.
+     */
+    private static ByteBuffer image(final Group root) {
+        final List<Group> groups = new ArrayList<>();
+        final List<Map<String,Value>> values = new ArrayList<>();
+        final List<List<Group>> children = new ArrayList<>();
+        collect(root, groups, values, children);
+
+        final int groupSlots = slots(groups.size());
+        int size = 8 + groupSlots * GROUP_SLOT;
+        final int[] records = new int[groups.size()];
+        for (int g=0; g<groups.size(); g++) {
+            records[g] = size;
+            final int keyCount = values.get(g).size();
+            size += 12 + 4 * (keyCount + children.get(g).size()) + slots(keyCount) * KEY_SLOT;
+        }
+
+        final Map<String,Integer> refs = new LinkedHashMap<>();
+        final List<byte[]> encoded = new ArrayList<>();
+        for (int g=0; g<groups.size(); g++) {
+            size = string(groups.get(g).getPath(), size, refs, encoded);
+            for (Map.Entry<String,Value> kv : values.get(g).entrySet()) {
+                size = string(kv.getKey(), size, refs, encoded);
+                if (kv.getValue().getType() == ValueType.STRING) {
+                    size = string(kv.getValue().toString(), size, refs, encoded);
+                }
+            }
+        }
+
+        final ByteBuffer image = ByteBuffer.allocate(size);
+        image.putInt(0, groupSlots);
+        image.putInt(4, groups.size());
+        for (int g=0; g<groups.size(); g++) {
+            final String path = groups.get(g).getPath();
+            int s = mix(path.hashCode()) & (groupSlots-1);
+            while (image.getInt(8 + s * GROUP_SLOT + 4) != 0) {
+                s = (s+1) & (groupSlots-1);
+            }
+            image.putInt(8 + s * GROUP_SLOT, path.hashCode());
+            image.putInt(8 + s * GROUP_SLOT + 4, refs.get(path));
+            image.putInt(8 + s * GROUP_SLOT + 8, records[g]);
+
+            final Map<String,Value> keys = values.get(g);
+            final List<Group> subGroups = children.get(g);
+            final int record = records[g];
+            final int keySlots = slots(keys.size());
+            final int table = record + 12 + 4 * (keys.size() + subGroups.size());
+            image.putInt(record, keys.size() == 0 ? 0 : keySlots);
+            image.putInt(record + 4, keys.size());
+            image.putInt(record + 8, subGroups.size());
+            int k = 0;
+            for (Map.Entry<String,Value> kv : keys.entrySet()) {
+                final String key = kv.getKey();
+                final Value value = kv.getValue();
+                int slot = mix(key.hashCode()) & (keySlots-1);
+                while (image.getInt(table + slot * KEY_SLOT + 4) != 0) {
+                    slot = (slot+1) & (keySlots-1);
+                }
+                final int at = table + slot * KEY_SLOT;
+                image.putInt(at, key.hashCode());
+                image.putInt(at + 4, refs.get(key));
+                image.put(at + 8, (byte) value.getType().ordinal());
+                image.putLong(at + 12, (value.getType() == ValueType.STRING)
+                                       ? refs.get(value.toString()) : value.bits());
+                image.putInt(record + 12 + 4 * k++, slot);
+            }
+            for (int c=0; c<subGroups.size(); c++) {
+                image.putInt(record + 12 + 4 * (keys.size() + c), refs.get(subGroups.get(c).getPath()));
+            }
+        }
+
+        int at = 0;
+        for (Map.Entry<String,Integer> ref : refs.entrySet()) {
+            final byte[] utf8 = encoded.get(at++);
+            image.putInt(ref.getValue(), utf8.length);
+            for (int i=0; i<utf8.length; i++) {
+                image.put(ref.getValue() + 4 + i, utf8[i]);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Lists a group and all groups below it in document order.
+     */
+    private static void collect(final Group group, final List<Group> groups,
+                                final List<Map<String,Value>> values, final List<List<Group>> children) {
+        final List<Group> subGroups = group.children();
+        groups.add(group);
+        values.add(group.values());
+        children.add(subGroups);
+        for (Group child : subGroups) {
+            collect(child, groups, values, children);
+        }
+    }
+
+    /**
+     * Places a string after the others, if it has not been placed yet.
+     * @return the size including the string
+     */
+    private static int string(final String string, final int size,
+                              final Map<String,Integer> refs, final List<byte[]> encoded) {
+        if (refs.containsKey(string)) {
+            return size;
+        }
+        final byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        refs.put(string, size);
+        encoded.add(utf8);
+        return size + 4 + utf8.length;
+    }
+
+    /**
+     * Gets the number of slots of a table, a power of two
+     * at least twice the number of entries.
+     */
+    private static int slots(final int entries) {
+        return Integer.highestOneBit(Math.max(1, entries) * 2 - 1) << 1;
+    }
+
+    /**
+     * Scrambles the bits of a hash (the murmur3 finalizer).
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Orders the accesses to the region before and after it.
+     * There is no fence method in the public API of Java 8, but a
+     * volatile write followed by a volatile read is a full barrier,
+     * for the compiler and for the processor.
+     */
+    private static void fence() {
+        barrier = 0;
+        if (barrier != 0) {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Maps the whole region file for reading.
+     */
+    private static ByteBuffer map(final File file) throws GcfException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch(NoSuchFileException ex) {
+            throw new GcfException("cannot find file to read: "+file.getAbsolutePath());
+        } catch(IOException ex) {
+            throw new GcfException("IO problem occurred while reading "+file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * A read from a publication.
+     * @param <T> the result
+     */
+    @FunctionalInterface
+    private interface RegionReader<T> {
+        /**
+         * Reads from a publication.
+         * @param region the mapped region
+         * @param base the offset of the publication
+         * @return the result
+         */
+        T read(ByteBuffer region, int base);
+    }
+}
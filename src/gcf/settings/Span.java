@@ -0,0 +1,128 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.Map;
+
+/**
+ * Locates a key and its value in the source bytes of a group,
+ * kept with the option <code>LOSSLESS</code>.
+ * The bytes around the spans, comments and white space, are kept
+ * as they are when the group is saved, only the spans of changed
+ * keys are replaced.<br>
+ * A span without a key stands for a deleted sub group, whose bytes
+ * are to be removed. The offsets are relative to the offset of
+ * the group:
+ * <pre>
+ *     port = ${default_port}   # comment
+ *     ^      ^              ^
+ *     start  valueStart     end
+ * </pre>
+ */
+final class Span {
+
+    /* The key, null for a deleted sub group */
+    final String key;
+
+    /* The deleted sub group, located where its bytes are, null for a key */
+    final Group removed;
+
+    /* The value as written in the source */
+    final Value value;
+
+    /* The global key referenced instead of a literal, null if there is none */
+    final String global;
+
+    /* Offset of the key */
+    final int start;
+
+    /* Offset of the value literal or reference */
+    final int valueStart;
+
+    /* Offset after the value literal or reference */
+    final int end;
+
+    /**
+     * Creates a span.
+     * @param key the key, null if the bytes are to be removed
+     * @param value the value as written in the source
+     * @param global the global key referenced, or null
+     * @param start offset of the key
+     * @param valueStart offset of the value
+     * @param end offset after the value
+     */
+    Span(final String key, final Value value, final String global,
+         final int start, final int valueStart, final int end) {
+        this.key = key;
+        this.removed = null;
+        this.value = value;
+        this.global = global;
+        this.start = start;
+        this.valueStart = valueStart;
+        this.end = end;
+    }
+
+    /**
+     * Creates the span of a parsed key.
+     * @param kv the parsed key
+     * @param groupStart offset of the group in the source
+     */
+    Span(final KeyValue kv, final int groupStart) {
+        this(kv.getKey(), kv.getValue(), kv.global(), kv.start() - groupStart,
+             kv.valueStart() - groupStart, kv.end() - groupStart);
+    }
+
+    /**
+     * Creates the span of a deleted sub group.
+     * The group is located when the span is used, since the group 
+     * may have been written to a new source meanwhile.
+     * @param removed the deleted sub group
+     */
+    Span(final Group removed) {
+        this.key = null;
+        this.removed = removed;
+        this.value = null;
+        this.global = null;
+        this.start = 0;
+        this.valueStart = 0;
+        this.end = 0;
+    }
+
+    /**
+     * Moves the span to another offset, e.g. once the group was
+     * written with other spans in front of it changed.
+     * @param start the new offset of the key
+     * @return the moved span
+     */
+    Span moveTo(final int start) {
+        return new Span(this.key, this.value, this.global, start,
+                        start + this.valueStart - this.start, start + this.end - this.start);
+    }
+
+    /**
+     * Checks if the value in the source is still the given value.
+     * A reference to a global key means the value of the global key,
+     * which may have changed meanwhile.
+     * @param current the value of the key
+     * @param globals the global keys and their values
+     * @return true if the source need not be changed
+     */
+    boolean matches(final Value current, final Map<String,Value> globals) {
+        final Value written = (this.global == null) ? this.value : globals.get(this.global);
+        return current.equals(written);
+    }
+}
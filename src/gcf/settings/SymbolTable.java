@@ -0,0 +1,215 @@
+/*
+  Settings 
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interns the identifiers of a configuration.
+ * Keys, group names and group paths repeat a lot, e.g. the same 
+ * keys under every one of many sibling groups. This table makes 
+ * sure that each distinct identifier exists only once in memory, 
+ * so that it can be compared by identity.<br>
+ * Identifiers can be looked up directly from the input bytes, 
+ * in which case no string is created if the identifier is 
+ * already known.
+ * The hash of an entry is the <code>String.hashCode</code> of its text.<br>
+ * The table is split into segments with a lock each, so that 
+ * several parsers can intern concurrently.
+ */
+final class SymbolTable {
+    
+    /* Amount of segments, must be a power of two */
+    private static final int SEGMENTS = 16;
+    
+    /* Initial amount of slots per segment, must be a power of two */
+    private static final int INITIAL_CAPACITY = 64;
+    
+    /* The segments of the table */
+    private final Segment[] segments = new Segment[SEGMENTS];
+    
+    /**
+     * Creates an empty symbol table.
+     */
+    SymbolTable() {
+        for(int i=0; i<SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+    
+    /**
+     * Interns a string.
+     * @param text the string to be interned
+     * @return the unique instance equal to the string
+     */
+    String intern(final String text) {
+        final int hash = text.hashCode();
+        final Segment segment = segmentFor(hash);
+        synchronized(segment) {
+            final String[] table = segment.table;
+            final int mask = table.length - 1;
+            int i = spread(hash) & mask;
+            String s;
+            while((s = table[i]) != null) {
+                if (s.hashCode() == hash && s.equals(text)) return s;
+                i = (i + 1) & mask;
+            }
+            return segment.add(i, text);
+        }
+    }
+    
+    /**
+     * Interns the identifier stored in a range of input bytes.
+     * An ASCII identifier is hashed and compared in place,
+     * anything else is decoded as UTF-8 first.
+     * @param input the input bytes
+     * @param from index of the first byte
+     * @param length number of bytes
+     * @return the unique instance of the identifier
+     */
+    String intern(final ByteBuffer input, final int from, final int length) {
+        int hash = 0;
+        for(int k=0; k<length; k++) {
+            final byte b = input.get(from + k);
+            if (b < 0) return intern(decode(input, from, length));
+            hash = 31 * hash + b;
+        }
+        
+        final Segment segment = segmentFor(hash);
+        synchronized(segment) {
+            final String[] table = segment.table;
+            final int mask = table.length - 1;
+            int i = spread(hash) & mask;
+            String s;
+            while((s = table[i]) != null) {
+                if (s.hashCode() == hash && equalsAscii(s, input, from, length)) return s;
+                i = (i + 1) & mask;
+            }
+            
+            final char[] chars = new char[length];
+            for(int k=0; k<length; k++) {
+                chars[k] = (char)input.get(from + k);
+            }
+            return segment.add(i, new String(chars));
+        }
+    }
+    
+    /**
+     * Interns the path of a group from its parent path and its name.
+     * The path is only concatenated if it is not yet known.
+     * @param parent the path of the parent group
+     * @param name the name of the group
+     * @return the unique instance of the group path
+     */
+    String internPath(final String parent, final String name) {
+        int hash = parent.hashCode();
+        for(int k=0; k<name.length(); k++) {
+            hash = 31 * hash + name.charAt(k);
+        }
+        hash = 31 * hash + '/';
+        
+        final int length = parent.length() + name.length() + 1;
+        final Segment segment = segmentFor(hash);
+        synchronized(segment) {
+            final String[] table = segment.table;
+            final int mask = table.length - 1;
+            int i = spread(hash) & mask;
+            String s;
+            while((s = table[i]) != null) {
+                if (s.hashCode() == hash && s.length() == length && s.charAt(length - 1) == '/' 
+                        && s.startsWith(parent) && s.startsWith(name, parent.length())) {
+                    return s;
+                }
+                i = (i + 1) & mask;
+            }
+            return segment.add(i, parent + name + "/");
+        }
+    }
+    
+    /**
+     * Gets the segment responsible for a hash.
+     * The segment is chosen by the high bits, the slot by the low bits.
+     */
+    private Segment segmentFor(final int hash) {
+        return segments[spread(hash) >>> 28];
+    }
+    
+    /**
+     * Spreads the bits of a string hash.
+     */
+    private static int spread(final int hash) {
+        return hash * 0x9E3779B9;
+    }
+    
+    /**
+     * Compares a string with a range of ASCII bytes.
+     */
+    private static boolean equalsAscii(final String s, final ByteBuffer input, final int from, final int length) {
+        if (s.length() != length) return false;
+        for(int k=0; k<length; k++) {
+            if (s.charAt(k) != input.get(from + k)) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Decodes a range of UTF-8 bytes.
+     */
+    private static String decode(final ByteBuffer input, final int from, final int length) {
+        final byte[] bytes = new byte[length];
+        for(int k=0; k<length; k++) {
+            bytes[k] = input.get(from + k);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * One segment of the table, guarded by its own monitor.
+     */
+    private static final class Segment {
+        
+        /* Open addressing table of the interned strings */
+        String[] table = new String[INITIAL_CAPACITY];
+        
+        /* Amount of interned strings */
+        int size = 0;
+        
+        /**
+         * Adds a string in a free slot and grows the table 
+         * once it is half full.
+         * @param slot index of the free slot
+         * @param text the string to be added
+         * @return the added string
+         */
+        String add(final int slot, final String text) {
+            table[slot] = text;
+            if (++size > table.length / 2) {
+                final String[] old = table;
+                table = new String[2 * old.length];
+                final int mask = table.length - 1;
+                for(String s : old) {
+                    if (s == null) continue;
+                    int i = spread(s.hashCode()) & mask;
+                    while(table[i] != null) i = (i + 1) & mask;
+                    table[i] = s;
+                }
+            }
+            return text;
+        }
+    }
+}
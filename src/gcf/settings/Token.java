@@ -18,29 +18,54 @@ package gcf.settings;
 
 /**
  * Defines a token in the gcf file format.
- * A token contains a type and a respective text.
+ * A token contains a type and the offsets of its text in the input.
+ * Number and boolean tokens also carry their value, converted by 
+ * the lexer while reading the text.
  * The text can be the token symbol only, e.g. '['
- * or any text, e.g. the text in the groupname.
- * 
+ * or any text, e.g. the text in the groupname.<br>
+ * A token is a mutable slot that the parser reuses for every 
+ * token it reads, so its text is only materialized when asked for,
+ * and only while the token is still one of the lookahead tokens.
  */
-class Token {
+final class Token {
     
-    private final TokenType type;
-    private final String    text;
-    private final int       lineNumber;
+    private final Lexer source;
+    private TokenType   type;
+    private long        start;
+    private long        end;
+    private int         lineNumber;
+    private long        bits;
     
-    Token(final TokenType type, final String text, final int lineNumber) {
+    Token(final Lexer source) {
+        this.source = source;
+    }
+    
+    void set(final TokenType type, final long start, final long end, final int lineNumber) {
         this.type = type;
-        this.text = text;
+        this.start = start;
+        this.end = end;
         this.lineNumber = lineNumber;
     }
     
+    void set(final TokenType type, final long start, final long end, final int lineNumber, final long bits) {
+        set(type, start, end, lineNumber);
+        this.bits = bits;
+    }
+    
     TokenType getType() {return this.type;}
-    String    getText() {return this.text;} 
+    long      getStart() {return this.start;}
+    long      getEnd() {return this.end;}
+    String    getText() {return this.source.text(this.start, this.end);} 
+    String    getSymbol() {return this.source.symbol(this.start, this.end);}
     int       getLineNumber() {return this.lineNumber;}
+    long      getBits() {return this.bits;}
+    
+    boolean textEquals(final String text) {
+        return this.source.textEquals(this.start, this.end, text);
+    }
 
     @Override
     public String toString() {
-        return "<"+this.type.getLongName()+",\'"+this.text+"\'>";
+        return "<"+this.type.getLongName()+",\'"+getText()+"\'>";
     }
 }
@@ -35,7 +35,15 @@ enum TokenType {
     
     EQUAL_SIGN("EQUAL_SIGN","="),
     
-    VALUE("VALUE","<value>"),
+    INT("INT","<int>"),
+    
+    LONG("LONG","<long>"),
+    
+    DOUBLE("DOUBLE","<double>"),
+    
+    BOOLEAN("BOOLEAN","<boolean>"),
+    
+    STRING("STRING","<string>"),
     
     GLOBAR_VAR_SYMBOL("GLOBAL_VAR","$"),
     
@@ -61,6 +69,14 @@ enum TokenType {
     String getSymbol() {
         return this.symbol;
     }
+    
+    /**
+     * Checks if this type is one of the literal value types.
+     * @return true for int, long, double, boolean and string literals
+     */
+    boolean isValue() {
+        return this == INT || this == LONG || this == DOUBLE || this == BOOLEAN || this == STRING;
+    }
 
     @Override
     public String toString() {
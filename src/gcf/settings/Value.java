@@ -0,0 +1,329 @@
+/*
+  Settings 
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+/**
+ * Holds the value of a key.
+ * The value is stored with a type tag, numbers and booleans as 
+ * primitive bits, so that the typed reads return the stored 
+ * primitive without boxing and without a round trip through 
+ * a string.<br>
+ * A value is immutable: changing the value of a key replaces 
+ * the <code>Value</code> object, so that it can be shared, e.g. 
+ * when a global key is referenced by other keys.
+ */
+final class Value {
+    
+    /* The type of the value */
+    private final ValueType type;
+    
+    /* int and long values, double bits or 1/0 for booleans */
+    private final long bits;
+    
+    /* The text of a string value, null for all other types */
+    private final String string;
+    
+    private Value(final ValueType type, final long bits, final String string) {
+        this.type = type;
+        this.bits = bits;
+        this.string = string;
+    }
+    
+    static Value of(final int value) {
+        return new Value(ValueType.INT, value, null);
+    }
+    
+    static Value of(final long value) {
+        return new Value(ValueType.LONG, value, null);
+    }
+    
+    static Value of(final double value) {
+        return new Value(ValueType.DOUBLE, Double.doubleToRawLongBits(value), null);
+    }
+    
+    static Value of(final boolean value) {
+        return new Value(ValueType.BOOLEAN, value ? 1 : 0, null);
+    }
+    
+    static Value of(final String value) {
+        return new Value(ValueType.STRING, 0, value);
+    }
+    
+    /**
+     * Creates a value from its stored representation, 
+     * see <code>bits()</code>.
+     * @param type the type
+     * @param bits the bits of numbers and booleans
+     * @param string the text of strings, null for other types
+     * @return the value
+     */
+    static Value of(final ValueType type, final long bits, final String string) {
+        return new Value(type, bits, string);
+    }
+    
+    /**
+     * Creates a value from any kind of number.
+     * Integral numbers that fit into an int are stored as INT, 
+     * those that fit into a long as LONG and all others as DOUBLE.
+     * Floats keep their decimal representation, i.e. 1.1f becomes 1.1.
+     * @param value the number
+     * @return the value
+     */
+    static Value of(final Number value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return of(value.intValue());
+        }
+        if (value instanceof Long) {
+            return of(value.longValue());
+        }
+        if (value instanceof Double) {
+            return of(value.doubleValue());
+        }
+        
+        final String text = value.toString();
+        if (value instanceof Float) {
+            return of(Double.parseDouble(text));
+        }
+        try {
+            final long l = Long.parseLong(text);
+            return (l == (int)l) ? of((int)l) : of(l);
+        } catch(NumberFormatException ex) {
+            return of(Double.parseDouble(text));
+        }
+    }
+    
+    /**
+     * Gets the type of the value.
+     * @return the type
+     */
+    ValueType getType() {
+        return this.type;
+    }
+    
+    /**
+     * Gets the value as a short.
+     * @return the value as a short
+     * @throws GcfException if the value cannot be represented as a short
+     */
+    short asShort() throws GcfException {
+        if (isIntegral() && this.bits == (short)this.bits) return (short)this.bits;
+        try {
+            if (this.type == ValueType.STRING) return Short.parseShort(this.string);
+        } catch(NumberFormatException ex) {
+            // reported below
+        }
+        throw new GcfException("value "+this+ " cannot be parse as an short");
+    }
+    
+    /**
+     * Gets the value as an int.
+     * @return the value as an int
+     * @throws GcfException if the value cannot be represented as an int
+     */
+    int asInt() throws GcfException {
+        if (isIntegral() && this.bits == (int)this.bits) return (int)this.bits;
+        try {
+            if (this.type == ValueType.STRING) return Integer.parseInt(this.string);
+        } catch(NumberFormatException ex) {
+            // reported below
+        }
+        throw new GcfException("value "+this+ " cannot be parse as an integer");
+    }
+    
+    /**
+     * Gets the value as a long.
+     * @return the value as a long
+     * @throws GcfException if the value cannot be represented as a long
+     */
+    long asLong() throws GcfException {
+        if (isIntegral()) return this.bits;
+        try {
+            if (this.type == ValueType.STRING) return Long.parseLong(this.string);
+        } catch(NumberFormatException ex) {
+            // reported below
+        }
+        throw new GcfException("value "+this+ " cannot be parse as a long");
+    }
+    
+    /**
+     * Gets the value as a float.
+     * @return the value as a float
+     * @throws GcfException if the value is not a number
+     */
+    float asFloat() throws GcfException {
+        try {
+            if (this.type == ValueType.STRING) return Float.parseFloat(this.string);
+        } catch(NumberFormatException ex) {
+            throw new GcfException("value "+this+ " cannot be parse as an float");
+        }
+        if (this.type == ValueType.BOOLEAN) {
+            throw new GcfException("value "+this+ " cannot be parse as an float");
+        }
+        return (float)asDouble();
+    }
+    
+    /**
+     * Gets the value as a double.
+     * @return the value as a double
+     * @throws GcfException if the value is not a number
+     */
+    double asDouble() throws GcfException {
+        switch(this.type) {
+            case INT:
+            case LONG:
+                return this.bits;
+            case DOUBLE:
+                return Double.longBitsToDouble(this.bits);
+            default:
+                break;
+        }
+        try {
+            if (this.type == ValueType.STRING) return Double.parseDouble(this.string);
+        } catch(NumberFormatException ex) {
+            // reported below
+        }
+        throw new GcfException("value "+this+ " cannot be parse as a double");
+    }
+    
+    /**
+     * Gets the value as a boolean.
+     * A string is accepted if it reads "true" or "false", ignoring the case.
+     * @return the value as a boolean
+     * @throws GcfException if the value is not a boolean
+     */
+    boolean asBoolean() throws GcfException {
+        if (this.type == ValueType.BOOLEAN) return this.bits != 0;
+        if (this.type == ValueType.STRING) {
+            if (this.string.equalsIgnoreCase("true"))  return true;
+            if (this.string.equalsIgnoreCase("false")) return false;
+        }
+        throw new GcfException("value "+this+ " is not a boolean");
+    }
+    
+    /**
+     * Gets the value as a boxed object, i.e. an <code>Integer</code>, 
+     * <code>Long</code>, <code>Double</code>, <code>Boolean</code> or 
+     * <code>String</code>.
+     * @return the value as an object
+     */
+    Object toObject() {
+        switch(this.type) {
+            case INT:     return (int)this.bits;
+            case LONG:    return this.bits;
+            case DOUBLE:  return Double.longBitsToDouble(this.bits);
+            case BOOLEAN: return this.bits != 0;
+            default:      return this.string;
+        }
+    }
+    
+    /**
+     * Checks if the value is an int or a long.
+     */
+    private boolean isIntegral() {
+        return this.type == ValueType.INT || this.type == ValueType.LONG;
+    }
+
+    /**
+     * Gets the stored bits: int and long values, double bits 
+     * or 1/0 for booleans, 0 for strings.
+     * @return the bits
+     */
+    long bits() {
+        return this.bits;
+    }
+    
+    /**
+     * Checks if two values are equal.
+     * Integral values are equal if their numbers are, regardless 
+     * of being stored as INT or LONG.
+     * @param obj the other value
+     * @return true if the values are equal
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Value)) {
+            return false;
+        }
+        
+        final Value other = (Value) obj;
+        if (this.isIntegral() && other.isIntegral()) {
+            return this.bits == other.bits;
+        }
+        return this.type == other.type && this.bits == other.bits 
+            && (this.string == null ? other.string == null : this.string.equals(other.string));
+    }
+    
+    @Override
+    public int hashCode() {
+        return (int) (hash64() ^ (hash64() >>> 32));
+    }
+    
+    /**
+     * Gets a 64 bit hash of the value, equal for equal values.
+     * @return the hash
+     */
+    long hash64() {
+        final long content = (this.string != null) ? hash64(this.string) : this.bits;
+        final ValueType kind = isIntegral() ? ValueType.LONG : this.type;
+        return mix64(content + (kind.ordinal() + 1) * 0x9e3779b97f4a7c15L);
+    }
+    
+    /**
+     * Gets a 64 bit hash of a string, which is the same in every JVM.
+     * @param text the string
+     * @return the hash
+     */
+    static long hash64(final String text) {
+        long h = 0xcbf29ce484222325L;
+        for (int i=0; i<text.length(); i++) {
+            h = (h ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return mix64(h ^ text.length());
+    }
+    
+    /**
+     * Scrambles the bits of a hash (the murmur3 finalizer).
+     * @param h the hash
+     * @return the scrambled hash
+     */
+    static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    /**
+     * Gets the text of the value, strings without double quotes.
+     * @return the text of the value
+     */
+    @Override
+    public String toString() {
+        switch(this.type) {
+            case INT:
+            case LONG:    return Long.toString(this.bits);
+            case DOUBLE:  return Double.toString(Double.longBitsToDouble(this.bits));
+            case BOOLEAN: return (this.bits != 0) ? "true" : "false";
+            default:      return this.string;
+        }
+    }
+}
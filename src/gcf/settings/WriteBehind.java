@@ -0,0 +1,169 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a save on a daemon thread, some time after it was requested.
+ * The saves requested until then are run once, since a save writes
+ * the latest content anyway, so a burst of requests costs one write.
+ * A request made while a save is running is run by the next save,
+ * as the running one may have missed its changes.<br>
+ * The thread is started with the first request and ends when no
+ * request came for a while.
+ */
+final class WriteBehind {
+
+    /* The delay of a save if none is set, in milliseconds */
+    private static final long DEFAULT_DELAY_MS = 100;
+
+    /* Time the idle thread is kept, in seconds */
+    private static final long KEEP_ALIVE_S = 5;
+
+    /* The save run */
+    private final Runnable save;
+
+    /* The name of the thread */
+    private final String name;
+
+    /* The time from the first request to the save, in nanoseconds */
+    private volatile long delay = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DELAY_MS);
+
+    /* The thread running the saves, null until the first request */
+    private ScheduledThreadPoolExecutor executor;
+
+    /* The requests waiting for the next save */
+    private List<CompletableFuture<Void>> waiting = new ArrayList<>();
+
+    /* True once closed, the saves are run at once then */
+    private boolean closed;
+
+    /**
+     * Creates the write behind, without starting a thread.
+     * @param save the save to run
+     * @param name the name of the thread
+     */
+    WriteBehind(final Runnable save, final String name) {
+        this.save = save;
+        this.name = name;
+    }
+
+    /**
+     * Sets the time from the first request to the save, which
+     * bounds how long changes wait to be written.
+     * @param delay the delay, 0 to save as soon as possible
+     * @param unit the unit of the delay
+     */
+    void delay(final long delay, final TimeUnit unit) {
+        if (delay < 0) {
+            throw new GcfException("the save delay must not be negative: "+delay);
+        }
+        this.delay = unit.toNanos(delay);
+    }
+
+    /**
+     * Requests a save.
+     * @return completed once a save started after the request is done,
+     *         or exceptionally with the error of that save
+     */
+    CompletableFuture<Void> request() {
+        final CompletableFuture<Void> request = new CompletableFuture<>();
+        synchronized (this) {
+            if (!this.closed) {
+                this.waiting.add(request);
+                if (this.waiting.size() == 1) {
+                    executor().schedule(this::run, this.delay, TimeUnit.NANOSECONDS);
+                }
+                return request;
+            }
+        }
+
+        try {
+            this.save.run();
+            request.complete(null);
+        } catch(RuntimeException ex) {
+            request.completeExceptionally(ex);
+        }
+        return request;
+    }
+
+    /**
+     * Gets the thread running the saves, creating it with the first request.
+     */
+    private ScheduledThreadPoolExecutor executor() {
+        if (this.executor == null) {
+            this.executor = new ScheduledThreadPoolExecutor(1, r -> {
+                final Thread thread = new Thread(r, this.name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor.setKeepAliveTime(KEEP_ALIVE_S, TimeUnit.SECONDS);
+            this.executor.allowCoreThreadTimeOut(true);
+            // a save scheduled when closing is run by close
+            this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+        return this.executor;
+    }
+
+    /**
+     * Runs the save for the requests waiting.
+     */
+    private void run() {
+        final List<CompletableFuture<Void>> requests;
+        synchronized (this) {
+            requests = this.waiting;
+            this.waiting = new ArrayList<>();
+        }
+        if (requests.isEmpty()) {
+            // run by close already
+            return;
+        }
+
+        try {
+            this.save.run();
+            requests.forEach(r -> r.complete(null));
+        } catch(RuntimeException ex) {
+            requests.forEach(r -> r.completeExceptionally(ex));
+        }
+    }
+
+    /**
+     * Runs the save for the requests waiting at once, and waits for
+     * a save still running. Later requests are saved at once.
+     */
+    void close() {
+        final ScheduledThreadPoolExecutor running;
+        synchronized (this) {
+            this.closed = true;
+            running = this.executor;
+        }
+        run();
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+  Settings
+  Copyright 2015 micama
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package gcf.settings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Saves randomly changed settings and parses the file again, which
+ * must give the same content, whichever way the file is read and
+ * written: formatted, spliced from the source, patched in place or
+ * with the layout kept.
+ */
+public class RoundTripTest {
+
+    /* The option combinations the file is read and written with */
+    private static final Option[][] OPTIONS = {
+        {},
+        {Option.LOSSLESS},
+        {Option.LAZY},
+        {Option.PARALLEL},
+        {Option.RELOAD},
+        {Option.SNAPSHOT},
+        {Option.LOSSLESS, Option.LAZY},
+        {Option.LOSSLESS, Option.PARALLEL},
+        {Option.LOSSLESS, Option.RELOAD},
+    };
+
+    /* Number of saves per option combination and seed */
+    private static final int ROUNDS = 25;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void savedFileReadsBackAsSaved() throws IOException {
+        for (Option[] options : OPTIONS) {
+            for (long seed = 0; seed < 4; seed++) {
+                roundTrip(options, seed);
+            }
+        }
+    }
+
+    @Test
+    public void everyParseModeReadsTheSameContent() throws IOException {
+        final File file = write("modes.gcf", source(60));
+        final long expected = contentHash(file);
+        for (Option[] options : OPTIONS) {
+            assertEquals(Arrays.toString(options), expected, contentHash(file, options));
+        }
+    }
+
+    @Test
+    public void losslessSaveKeepsComments() throws IOException {
+        final File file = write("comments.gcf", source(10));
+        final Settings settings = new Settings(file.getPath(), Option.LOSSLESS);
+        settings.getGroup("/G3/").changeValue("port", 8003);
+        settings.getGroup("/G5/").addKey("added", "yes");
+        settings.getGroup("/G7/").deleteSubGroup("Sub");
+        settings.save();
+
+        final String saved = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(saved.startsWith("# settings of the test"));
+        assertTrue(saved.contains("port = 8003 # the port"));
+        assertTrue(saved.contains("host = ${domain} # the host"));
+        assertEquals(settings.contentHash(), contentHash(file));
+    }
+
+    @Test
+    public void saveAfterSnapshotLoadKeepsComments() throws IOException {
+        final File file = write("snapshot.gcf", source(10));
+        // the first load writes the snapshot, the second reads it
+        new Settings(file.getPath(), Option.SNAPSHOT).close();
+        assertTrue(GcfSnapshot.fileFor(file).isFile());
+
+        final Settings settings = new Settings(file.getPath(), Option.SNAPSHOT);
+        settings.getGroup("/G3/").changeValue("port", "changed");
+        settings.save();
+
+        final String saved = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(saved.startsWith("# settings of the test"));
+        assertTrue(saved.contains("# a global key between the groups"));
+        assertTrue(saved.contains("host = ${domain} # the host"));
+        assertTrue(saved.endsWith("# the end"));
+        assertEquals(settings.contentHash(), contentHash(file));
+        settings.close();
+    }
+
+    /**
+     * Changes, saves and reads back the settings for a number of rounds.
+     */
+    private void roundTrip(final Option[] options, final long seed) throws IOException {
+        final String name = Arrays.toString(options) + " seed " + seed;
+        final File file = write("trip" + seed + ".gcf", source(40));
+        final Random random = new Random(seed);
+        final Settings settings = new Settings(file.getPath(), options);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                final int edits = 1 + random.nextInt(4);
+                for (int i = 0; i < edits; i++) {
+                    edit(settings, random);
+                }
+                settings.save();
+
+                assertEquals(name + " round " + round, settings.contentHash(), contentHash(file));
+                assertEquals(name + " round " + round, settings.contentHash(), contentHash(file, options));
+            }
+        } finally {
+            settings.close();
+        }
+    }
+
+    /**
+     * Makes one random change: a value, a key or a group.
+     */
+    private static void edit(final Settings settings, final Random random) {
+        final List<Group> groups = new ArrayList<>();
+        collect(settings.childGroups(), groups);
+        if (groups.isEmpty() || random.nextInt(20) == 0) {
+            final String path = "/Top" + random.nextInt(1000) + "/";
+            settings.batch(tx -> {
+                tx.addGroup(path);
+                tx.addKey(path, "id", random.nextInt(100));
+            });
+            return;
+        }
+
+        final Group group = groups.get(random.nextInt(groups.size()));
+        final List<String> keys = new ArrayList<>(group.childKeys());
+        final String key = keys.isEmpty() ? null : keys.get(random.nextInt(keys.size()));
+        switch (random.nextInt(8)) {
+            case 0:
+            case 1:
+                if (key != null) {
+                    // often a value of the same length, which is patched in place
+                    group.changeValue(key, 1000 + random.nextInt(9000));
+                }
+                break;
+            case 2:
+                if (key != null) {
+                    group.changeValue(key, "text " + random.nextInt(100));
+                }
+                break;
+            case 3:
+                group.addKey("k" + random.nextInt(50), random.nextInt(1000) / 8.0);
+                break;
+            case 4:
+                group.addKey("b" + random.nextInt(50), random.nextBoolean());
+                break;
+            case 5:
+                if (key != null) {
+                    group.deleteKey(key);
+                }
+                break;
+            case 6:
+                group.addSubGroup("N" + random.nextInt(20));
+                break;
+            default:
+                final List<Group> children = new ArrayList<>(group.childGroups());
+                if (!children.isEmpty()) {
+                    group.deleteSubGroup(children.get(random.nextInt(children.size())).getName());
+                }
+                break;
+        }
+    }
+
+    private static void collect(final Iterable<Group> groups, final List<Group> all) {
+        for (Group group : groups) {
+            all.add(group);
+            collect(group.childGroups(), all);
+        }
+    }
+
+    /**
+     * Gets the content hash of a file read with the given options.
+     */
+    private static long contentHash(final File file, final Option... options) {
+        final Settings settings = new Settings(file.getPath(), options);
+        try {
+            return settings.contentHash();
+        } finally {
+            settings.close();
+        }
+    }
+
+    private File write(final String name, final String text) throws IOException {
+        final File file = new File(this.folder.getRoot(), name);
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Builds a file with comments, global keys in front of and between
+     * the groups, references to them, and nested groups.
+     */
+    private static String source(final int groups) {
+        final StringBuilder text = new StringBuilder();
+        text.append("# settings of the test\n");
+        text.append("domain = \"example.org\"\n");
+        text.append("retries = 3\n\n");
+        for (int i = 0; i < groups; i++) {
+            if (i == groups / 2) {
+                text.append("# a global key between the groups\n");
+                text.append("timeout = 2.5\n\n");
+            }
+            text.append("[G").append(i).append("]\n");
+            text.append("    host = ${domain} # the host\n");
+            text.append("    port = ").append(8000 + i).append(" # the port\n");
+            text.append("    name    = \"group ").append(i).append("\"\n");
+            text.append("    enabled = ").append(i % 2 == 0).append("\n");
+            if (i % 3 == 0) {
+                text.append("    limit = ").append(-i * 1000000000L).append("\n");
+            }
+            text.append("    [Sub]\n");
+            text.append("        # comment in a sub group\n");
+            text.append("        retries = ${retries}\n");
+            text.append("        ratio   = 0.").append(i).append("\n");
+            text.append("    [/Sub]\n");
+            text.append("[/G").append(i).append("]\n");
+        }
+        text.append("# the end");
+        return text.toString();
+    }
+}